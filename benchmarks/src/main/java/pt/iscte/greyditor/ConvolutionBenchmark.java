@@ -0,0 +1,62 @@
+package pt.iscte.greyditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs with the Vector API; the scalar fallback is measured with -jvmArgsAppend -Dgreyditor.vector=false
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ConvolutionBenchmark {
+    @Param({"500", "1000"})
+    int size;
+
+    @Param({"2", "10", "30"})
+    int radius;
+
+    int[][] input;
+    int[][] image;
+    EffectValue gaussian;
+    EffectValue sharpen;
+
+    @Setup
+    public void setup() {
+        input = Images.gradient(size);
+        image = new int[size][size];
+        gaussian = Convolution.gaussianBlur();
+        sharpen = Convolution.sharpen();
+    }
+
+    /**
+     * The effects modify the image, so each invocation starts from the same input
+     */
+    @Setup(Level.Invocation)
+    public void reset() {
+        for (int y = 0; y < size; y++)
+            System.arraycopy(input[y], 0, image[y], 0, size);
+    }
+
+    @Benchmark
+    public int[][] gaussianBlur() {
+        gaussian.apply(image, radius);
+        return image;
+    }
+
+    @Benchmark
+    public int[][] sharpen() {
+        sharpen.apply(image, radius);
+        return image;
+    }
+
+    @Benchmark
+    public int[][] boxBlur() {
+        IntegralImage.boxBlur(image, radius);
+        return image;
+    }
+}
@@ -0,0 +1,43 @@
+package pt.iscte.greyditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions between matrices and the compact storage, which replace the deep copies of the image
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class CopyBenchmark {
+    @Param({"100", "500", "1000"})
+    int size;
+
+    int[][] matrix;
+    GreyBuffer buffer;
+
+    @Setup
+    public void setup() {
+        matrix = Images.gradient(size);
+        buffer = GreyBuffer.of(matrix);
+    }
+
+    @Benchmark
+    public int[][] toMatrix() {
+        return buffer.toMatrix();
+    }
+
+    @Benchmark
+    public GreyBuffer fromMatrix() {
+        return GreyBuffer.of(matrix);
+    }
+
+    @Benchmark
+    public GreyBuffer copy() {
+        return buffer.copy();
+    }
+}
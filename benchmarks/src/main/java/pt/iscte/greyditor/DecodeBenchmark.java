@@ -0,0 +1,32 @@
+package pt.iscte.greyditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DecodeBenchmark {
+    @Param({"100", "500", "1000"})
+    int size;
+
+    @Param({"RGB", "GRAY"})
+    String type;
+
+    BufferedImage image;
+
+    @Setup
+    public void setup() {
+        image = Images.bufferedImage(size, type.equals("GRAY") ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public int[][] getImageDataGray() {
+        return Greyditor.getImageDataGray(image);
+    }
+}
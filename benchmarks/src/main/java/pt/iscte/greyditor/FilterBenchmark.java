@@ -0,0 +1,68 @@
+package pt.iscte.greyditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class FilterBenchmark {
+    @Param({"100", "500", "1000"})
+    int size;
+
+    int[][] input;
+    int[][] image;
+    Greyditor.FilterAdapter invert;
+    Greyditor.FilterValueAdapter darken;
+    Greyditor.FilterAdapter invertExpression;
+    Greyditor.FilterValueAdapter darkenExpression;
+
+    @Setup
+    public void setup() {
+        input = Images.gradient(size);
+        image = new int[size][size];
+        invert = new Greyditor.FilterAdapter(tone -> 255 - tone);
+        darken = new Greyditor.FilterValueAdapter((tone, intensity) -> Math.max(0, tone - intensity));
+        invertExpression = new Greyditor.FilterAdapter(ToneExpression.invert());
+        darkenExpression = new Greyditor.FilterValueAdapter(ToneExpression.tone().offset(0, -1).clamp(0, 255));
+    }
+
+    /**
+     * The effects modify the image, so each invocation starts from the same input
+     */
+    @Setup(Level.Invocation)
+    public void reset() {
+        for (int y = 0; y < size; y++)
+            System.arraycopy(input[y], 0, image[y], 0, size);
+    }
+
+    @Benchmark
+    public int[][] filter() {
+        invert.apply(image);
+        return image;
+    }
+
+    @Benchmark
+    public int[][] fusedFilters() {
+        FusedFilter fused = new FusedFilter();
+        fused.add(invert, 0);
+        fused.add(darken, 1);
+        fused.add(invert, 0);
+        fused.apply(image);
+        return image;
+    }
+
+    @Benchmark
+    public int[][] fusedExpressions() {
+        FusedFilter fused = new FusedFilter();
+        fused.add(invertExpression, 0);
+        fused.add(darkenExpression, 1);
+        fused.add(invertExpression, 0);
+        fused.apply(image);
+        return image;
+    }
+}
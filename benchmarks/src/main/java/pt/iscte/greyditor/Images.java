@@ -0,0 +1,26 @@
+package pt.iscte.greyditor;
+
+import java.awt.image.BufferedImage;
+
+final class Images {
+    private Images() {
+    }
+
+    static int[][] gradient(int size) {
+        int[][] image = new int[size][size];
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                image[y][x] = (x + y) % 256;
+        return image;
+    }
+
+    static BufferedImage bufferedImage(int size, int type) {
+        BufferedImage image = new BufferedImage(size, size, type);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++) {
+                int tone = (x + y) % 256;
+                image.setRGB(x, y, tone << 16 | tone << 8 | tone);
+            }
+        return image;
+    }
+}
@@ -0,0 +1,49 @@
+package pt.iscte.greyditor;
+
+import org.openjdk.jmh.annotations.*;
+import pt.iscte.greyditor.examples.DemoChain;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Effect chain of the demo (Invert, Darken, Grid, Lines) while one of the sliders is dragged
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class PipelineBenchmark {
+    @Param({"100", "500", "1000"})
+    int size;
+
+    @Param({"0", "64"})
+    int cacheMegabytes;
+
+    @Param({"Darken", "Lines"})
+    String slider;
+
+    GreyBuffer image;
+    EffectPipeline pipeline;
+    int sliderIndex;
+    int tick;
+
+    @Setup
+    public void setup() {
+        List<EditorWindow.EffectMinMax> effects = DemoChain.configuration().getEffects();
+        image = GreyBuffer.of(Images.gradient(size));
+        pipeline = new EffectPipeline(effects, cacheMegabytes * 1024L * 1024L, false);
+        for (int i = 0; i < effects.size(); i++)
+            if (effects.get(i).text().equals(slider))
+                sliderIndex = i;
+    }
+
+    @Benchmark
+    public GreyBuffer applyEffects() {
+        Integer[] values = {1, 20, 1, 10};
+        values[sliderIndex] = 1 + tick++ % 40;
+        return pipeline.apply(image, 1, values);
+    }
+}
@@ -0,0 +1,46 @@
+package pt.iscte.greyditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class RenderBenchmark {
+    @Param({"100", "500", "1000"})
+    int size;
+
+    @Param({"1", "3", "5"})
+    int scale;
+
+    int[][] matrix;
+    GreyBuffer buffer;
+    BufferedImage frame;
+
+    @Setup
+    public void setup() {
+        matrix = Images.gradient(size);
+        buffer = GreyBuffer.of(matrix);
+        frame = EditorWindow.render(buffer, 1);
+    }
+
+    @Benchmark
+    public BufferedImage render() {
+        return EditorWindow.render(buffer, scale);
+    }
+
+    @Benchmark
+    public BufferedImage matrixToImage() {
+        return EditorWindow.matrixToImage(matrix, scale);
+    }
+
+    @Benchmark
+    public BufferedImage zoomOut() {
+        return new Mipmap(frame).level(1.0 / scale);
+    }
+}
@@ -0,0 +1,20 @@
+package pt.iscte.greyditor.examples;
+
+import pt.iscte.greyditor.Greyditor;
+
+/**
+ * The effect chain of {@link Demo}, without the operations
+ */
+public final class DemoChain {
+    private DemoChain() {
+    }
+
+    public static Greyditor configuration() {
+        Greyditor configuration = new Greyditor("Benchmark");
+        configuration.addFilter("Invert", Demo::invert);
+        configuration.addFilter("Darken", Demo::darken, 0, 255);
+        configuration.addEffect("Grid", Demo::grid);
+        configuration.addEffect("Lines", Demo::lines, 0, 50);
+        return configuration;
+    }
+}
@@ -0,0 +1,40 @@
+package pt.iscte.greyditor;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes a file through a temporary file in the same directory, which replaces the target
+ * only once it is complete (atomically, if the file system supports it), so that the target
+ * is never left half written when writing fails or is cancelled.
+ */
+final class AtomicFile {
+    interface Writer {
+        /**
+         * @param temp file to be created (with StandardOpenOption.CREATE_NEW) and written
+         */
+        void write(Path temp) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    static void write(Path file, Writer writer) throws IOException {
+        Path target = file.toAbsolutePath();
+        // created by the writer, with the default permissions of new files (unlike Files.createTempFile)
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            writer.write(temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package pt.iscte.greyditor;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a configuration to a directory of images without any user interface.
+ * The values of the effects are fixed beforehand, and the selected simple operations are run
+ * on each image (in the given order) before the effects, as if they were pressed in the editor.
+ * Decoding, processing and encoding run in separate pools of threads connected by bounded queues.
+ * <pre>
+ * BatchRunner batch = new BatchRunner(configuration);
+ * batch.setValue("Invert", 1);
+ * batch.setValue("Darken", 40);
+ * batch.addOperation("Square");
+ * System.out.println(batch.run(new File("in"), new File("out")));
+ * </pre>
+ */
+public class BatchRunner {
+    private static final Item END = new Item(null, null);
+
+    private final List<EditorWindow.EffectMinMax> effects;
+    private final List<EditorWindow.OperationTool> operations;
+    private final Map<String, Integer> values = new HashMap<>();
+    private final List<Step> steps = new ArrayList<>();
+    private final PngWriter writer;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int ioThreads = 2;
+
+    private record Item(File file, GreyBuffer image) {
+    }
+
+    /**
+     * @param lock lock held while the operation runs, or null if it may run on several images at the same time
+     */
+    private record Step(OperationSimple operation, Object lock) {
+    }
+
+    /**
+     * Summary of a batch execution
+     * @param images number of images written
+     * @param failures number of images that could not be read, processed or written
+     * @param pixels total number of pixels processed
+     * @param elapsed duration of the execution
+     */
+    public record Report(int images, int failures, long pixels, Duration elapsed) {
+        public double imagesPerSecond() {
+            return images / seconds();
+        }
+
+        public double megapixelsPerSecond() {
+            return pixels / 1e6 / seconds();
+        }
+
+        private double seconds() {
+            return Math.max(elapsed.toNanos(), 1) / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d images (%d failed) in %d ms: %.1f images/s, %.1f Mpixels/s",
+                    images, failures, elapsed.toMillis(), imagesPerSecond(), megapixelsPerSecond());
+        }
+    }
+
+    public BatchRunner(Greyditor configuration) {
+        this.effects = configuration.getEffects();
+        this.operations = configuration.getOperations();
+        this.writer = configuration.getPngWriter();
+    }
+
+    /**
+     * Sets the value of an effect, as if its slider was set, or activates a check box effect (value 1).
+     * Sliders that are not set have value zero, and check boxes that are not set are inactive.
+     * @param text the text of the effect
+     * @param value value of the effect, or zero to deactivate a check box
+     */
+    public void setValue(String text, int value) {
+        if (effects.stream().noneMatch(e -> e.text().equals(text)))
+            throw new IllegalArgumentException("no such effect: " + text);
+        values.put(text, value);
+    }
+
+    /**
+     * Adds an operation to run on every image, before the effects, one image at a time
+     * (as the operation is a single instance that may keep state)
+     * @param text the text of a simple operation of the configuration
+     */
+    public void addOperation(String text) {
+        addOperation(text, false);
+    }
+
+    /**
+     * Adds an operation to run on every image, before the effects
+     * @param text the text of a simple operation of the configuration
+     * @param threadSafe whether the operation may run on several images at the same time
+     */
+    public void addOperation(String text, boolean threadSafe) {
+        for (EditorWindow.OperationTool o : operations)
+            if (o.text().equals(text) && o.operation() instanceof OperationSimple simple) {
+                Object lock = null;
+                if (!threadSafe) {
+                    // an operation added more than once is still run one image at a time
+                    for (Step s : steps)
+                        if (s.operation == simple && s.lock != null)
+                            lock = s.lock;
+                    if (lock == null)
+                        lock = new Object();
+                }
+                steps.add(new Step(simple, lock));
+                return;
+            }
+        throw new IllegalArgumentException("no such simple operation: " + text);
+    }
+
+    /**
+     * Sets the number of threads that apply the operations and effects
+     * @param workers positive number (by default, the number of processors)
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("invalid number of workers: " + workers);
+        this.workers = workers;
+    }
+
+    /**
+     * Sets the number of threads for decoding, and also for encoding
+     * @param ioThreads positive number (by default, 2)
+     */
+    public void setIOThreads(int ioThreads) {
+        if (ioThreads < 1)
+            throw new IllegalArgumentException("invalid number of threads: " + ioThreads);
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Processes every image of a directory, writing the results as PNG files with the same name
+     * (or with the extension as part of the name if several images have the same name, for instance
+     * a.jpg and a.png give a_jpg.png and a_png.png). Effects that are not thread-safe
+     * (see {@link EffectTraits#threadSafe()}) are applied to one image at a time, and so are the operations
+     * that were not added as thread-safe. As effects are not thread-safe unless their description says so
+     * (including effects added without a description), the effects are by default applied to a single
+     * image at a time, whatever the number of workers, and only decoding, encoding and the thread-safe
+     * operations run in parallel.
+     * @param inputDir directory with the images to read
+     * @param outputDir directory for the results (created if it does not exist)
+     * @return summary of the execution
+     */
+    public Report run(File inputDir, File outputDir) throws IOException, InterruptedException {
+        File[] files = inputDir.listFiles(this::isImage);
+        if (files == null)
+            throw new IOException("Not a directory: " + inputDir.getAbsolutePath());
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IOException("Cannot create directory: " + outputDir.getAbsolutePath());
+
+        ConcurrentLinkedQueue<File> input = new ConcurrentLinkedQueue<>(List.of(files));
+        BlockingQueue<Item> decoded = new ArrayBlockingQueue<>(workers * 2);
+        BlockingQueue<Item> processed = new ArrayBlockingQueue<>(workers * 2);
+        AtomicInteger images = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong pixels = new AtomicLong();
+        Integer[] effectValues = effectValues();
+        Map<File, String> outputNames = outputNames(files);
+        // a single lock for all the workers, as each effect is a single instance
+        Object lock = isThreadSafe(effectValues) ? null : new Object();
+
+        long start = System.nanoTime();
+        List<Thread> decoders = start(ioThreads, "decoder", () -> {
+            File file;
+            while ((file = input.poll()) != null) {
+                try {
+                    if (outputNames.get(file) == null)
+                        throw new IOException("the output file would have the name of another output file");
+                    GreyBuffer image = Pgm.isPgm(file.toPath()) ? Pgm.read(file.toPath()) :
+                            GreyBuffer.of(Greyditor.getImageDataGray(Greyditor.readImage(file, 1)));
+                    decoded.put(new Item(file, image));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    fail(file, e, failures);
+                }
+            }
+        });
+        List<Thread> processors = start(workers, "worker", () -> {
+            EffectPipeline pipeline = new EffectPipeline(effects, 0, false);
+            Item item;
+            while ((item = decoded.take()) != END) {
+                try {
+                    int[][] matrix = item.image.toMatrix();
+                    for (Step step : steps) {
+                        int[][] result;
+                        if (step.lock == null)
+                            result = step.operation.run(matrix);
+                        else
+                            synchronized (step.lock) {
+                                result = step.operation.run(matrix);
+                            }
+                        if (result != null)
+                            matrix = result;
+                    }
+                    GreyBuffer output;
+                    if (lock == null)
+                        output = pipeline.apply(GreyBuffer.of(matrix), 0, effectValues);
+                    else
+                        synchronized (lock) {
+                            output = pipeline.apply(GreyBuffer.of(matrix), 0, effectValues);
+                        }
+                    pixels.addAndGet((long) output.width * output.height);
+                    processed.put(new Item(item.file, output));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    fail(item.file, e, failures);
+                }
+            }
+        });
+        List<Thread> encoders = start(ioThreads, "encoder", () -> {
+            Item item;
+            while ((item = processed.take()) != END) {
+                File output = new File(outputDir, outputNames.get(item.file));
+                try {
+                    writer.write(item.image, output.toPath(), _ -> {}, () -> false);
+                    images.incrementAndGet();
+                } catch (Throwable e) {
+                    fail(item.file, e, failures);
+                }
+            }
+        });
+
+        join(decoders);
+        for (int i = 0; i < workers; i++)
+            decoded.put(END);
+        join(processors);
+        for (int i = 0; i < ioThreads; i++)
+            processed.put(END);
+        join(encoders);
+        return new Report(images.get(), failures.get(), pixels.get(), Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private Integer[] effectValues() {
+        Integer[] array = new Integer[effects.size()];
+        for (int i = 0; i < array.length; i++) {
+            EditorWindow.EffectMinMax e = effects.get(i);
+            int value = values.getOrDefault(e.text(), 0);
+            if (e.effect() instanceof EffectValue)
+                array[i] = value;
+            else
+                array[i] = value != 0 ? 1 : null;
+        }
+        return array;
+    }
+
+    private boolean isThreadSafe(Integer[] values) {
+        for (int i = 0; i < values.length; i++)
+            if (values[i] != null && !effects.get(i).traits().isThreadSafe())
+                return false;
+        return true;
+    }
+
+    /**
+     * Names of the output files, where the names that would still be the same
+     * (ignoring case, as on some file systems) are null
+     */
+    private static Map<File, String> outputNames(File[] files) {
+        Map<String, Integer> bases = new HashMap<>();
+        for (File file : files)
+            bases.merge(baseName(file).toLowerCase(), 1, Integer::sum);
+        Map<File, String> names = new HashMap<>();
+        Map<String, Integer> outputs = new HashMap<>();
+        for (File file : files) {
+            String name = (bases.get(baseName(file).toLowerCase()) > 1 ? file.getName().replace('.', '_') : baseName(file)) + ".png";
+            names.put(file, name);
+            outputs.merge(name.toLowerCase(), 1, Integer::sum);
+        }
+        names.replaceAll((_, name) -> outputs.get(name.toLowerCase()) > 1 ? null : name);
+        return names;
+    }
+
+    private boolean isImage(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return file.isFile() && dot != -1 && (Pgm.hasPgmExtension(name) ||
+                Set.of(ImageIO.getReaderFileSuffixes()).contains(name.substring(dot + 1).toLowerCase()));
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? name : name.substring(0, dot);
+    }
+
+    private static void fail(File file, Throwable e, AtomicInteger failures) {
+        failures.incrementAndGet();
+        System.err.println("error processing " + file + ": " + e);
+    }
+
+    private interface Task {
+        void run() throws InterruptedException;
+    }
+
+    private static List<Thread> start(int count, String name, Task task) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    task.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "batch " + name + " " + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads)
+            t.join();
+    }
+}
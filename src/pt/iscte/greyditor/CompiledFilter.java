@@ -0,0 +1,56 @@
+package pt.iscte.greyditor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A filter that is evaluated once per tone and cached as a 256-entry lookup table,
+ * one table per slider value.
+ */
+abstract class CompiledFilter {
+    private static final int MAX_TABLES = 256;
+
+    private final Map<Integer, int[]> tables = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > MAX_TABLES;
+        }
+    };
+
+    /**
+     * Transforms a single tone, used for tones outside [0, 255]
+     */
+    abstract int transform(int tone, int value);
+
+    synchronized int[] table(int value) {
+        int[] table = tables.get(value);
+        if (table == null) {
+            table = new int[256];
+            for (int t = 0; t < 256; t++)
+                table[t] = transform(t, value);
+            tables.put(value, table);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the expression of the filter, if it was declared as one
+     * @return the expression, or null for an opaque filter
+     */
+    ToneExpression expression() {
+        return null;
+    }
+
+    int lookup(int tone, int value) {
+        return (tone & ~0xFF) == 0 ? table(value)[tone] : transform(tone, value);
+    }
+
+    void applyTable(int[][] image, int value) {
+        int[] table = table(value);
+        for (int[] row : image)
+            for (int x = 0; x < row.length; x++) {
+                int t = row[x];
+                row[x] = (t & ~0xFF) == 0 ? table[t] : transform(t, value);
+            }
+    }
+}
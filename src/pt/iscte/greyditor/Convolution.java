@@ -0,0 +1,195 @@
+package pt.iscte.greyditor;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Convolution of an image with a kernel, which may be used as an effect.
+ * Kernels that are the product of a column and a row (such as Gaussian or box kernels) are detected
+ * and applied as two one-dimensional passes, so that the cost per pixel grows with the size
+ * of the kernel rather than with its area. The inner loops use the Vector API when available.
+ * <p>
+ * Pixels beyond the borders repeat the nearest pixel of the image, and the results are
+ * rounded and clamped to [0, 255]. Matrices with rows of different lengths are left unchanged.
+ * <pre>
+ * configuration.addEffect("Blur", Convolution.gaussianBlur(), 0, 20);
+ * configuration.addEffect("Emboss", Convolution.of(new double[][] {{-2, -1, 0}, {-1, 1, 1}, {0, 1, 2}}));
+ * </pre>
+ */
+public final class Convolution implements EffectSimple {
+    private final float[] horizontal;
+    private final float[] vertical;
+    private final float[][] kernel;
+
+    private Convolution(float[] horizontal, float[] vertical, float[][] kernel) {
+        this.horizontal = horizontal;
+        this.vertical = vertical;
+        this.kernel = kernel;
+    }
+
+    /**
+     * Creates a convolution with a two-dimensional kernel, which is applied in two passes if it is separable
+     * @param kernel rectangular matrix with an odd number of rows and columns, centered on the pixel
+     */
+    public static Convolution of(double[][] kernel) {
+        if (kernel.length % 2 == 0 || kernel[0].length % 2 == 0)
+            throw new IllegalArgumentException("kernel dimension must be odd");
+        for (double[] row : kernel)
+            if (row.length != kernel[0].length)
+                throw new IllegalArgumentException("kernel must be rectangular");
+
+        int pi = 0, pj = 0;
+        for (int i = 0; i < kernel.length; i++)
+            for (int j = 0; j < kernel[i].length; j++)
+                if (Math.abs(kernel[i][j]) > Math.abs(kernel[pi][pj])) {
+                    pi = i;
+                    pj = j;
+                }
+        double pivot = kernel[pi][pj];
+        double[] column = new double[kernel.length];
+        for (int i = 0; i < kernel.length; i++)
+            column[i] = pivot == 0 ? 0 : kernel[i][pj] / pivot;
+        boolean separable = true;
+        for (int i = 0; i < kernel.length && separable; i++)
+            for (int j = 0; j < kernel[i].length && separable; j++)
+                separable = Math.abs(kernel[i][j] - column[i] * kernel[pi][j]) <= 1e-9 * Math.abs(pivot);
+        if (separable)
+            return separable(kernel[pi], column);
+
+        float[][] taps = new float[kernel.length][];
+        for (int i = 0; i < kernel.length; i++)
+            taps[i] = floats(kernel[i]);
+        return new Convolution(null, null, taps);
+    }
+
+    /**
+     * Creates a convolution with the kernel that is the product of a column and a row
+     * @param horizontal row of the kernel, with an odd length
+     * @param vertical column of the kernel, with an odd length
+     */
+    public static Convolution separable(double[] horizontal, double[] vertical) {
+        if (horizontal.length % 2 == 0 || vertical.length % 2 == 0)
+            throw new IllegalArgumentException("kernel dimension must be odd");
+        return new Convolution(floats(horizontal), floats(vertical), null);
+    }
+
+    /**
+     * Creates an effect with a value whose convolution depends on the value of the slider.
+     * The convolution of each value is created once and reused.
+     * @param convolutions gives the convolution of a value, or null to leave the image unchanged
+     */
+    public static EffectValue effect(IntFunction<Convolution> convolutions) {
+        Map<Integer, Convolution> cache = new ConcurrentHashMap<>();
+        return (image, value) -> cache.computeIfAbsent(value, v -> {
+            Convolution c = convolutions.apply(v);
+            return c == null ? new Convolution(null, null, null) : c;
+        }).apply(image);
+    }
+
+    /**
+     * Gaussian blur whose value is the radius of the kernel (with standard deviation radius / 2)
+     */
+    public static EffectValue gaussianBlur() {
+        return effect(radius -> {
+            if (radius <= 0)
+                return null;
+            double sigma = radius / 2.0;
+            double[] taps = new double[2 * radius + 1];
+            double sum = 0;
+            for (int i = -radius; i <= radius; i++) {
+                taps[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+                sum += taps[i + radius];
+            }
+            for (int i = 0; i < taps.length; i++)
+                taps[i] /= sum;
+            return separable(taps, taps);
+        });
+    }
+
+    /**
+     * Sharpening whose value is the strength, in tenths (10 subtracts the four neighbours once)
+     */
+    public static EffectValue sharpen() {
+        return effect(strength -> {
+            if (strength <= 0)
+                return null;
+            double a = strength / 10.0;
+            return of(new double[][]{{0, -a, 0}, {-a, 1 + 4 * a, -a}, {0, -a, 0}});
+        });
+    }
+
+    public boolean isSeparable() {
+        return horizontal != null;
+    }
+
+    @Override
+    public void apply(int[][] image) {
+        if (horizontal == null && kernel == null || image.length == 0 || image[0] == null)
+            return;
+        for (int[] row : image)
+            if (row == null || row.length != image[0].length)
+                return;
+        if (isSeparable())
+            applySeparable(image, RowKernels.DEFAULT);
+        else
+            apply2D(image, RowKernels.DEFAULT);
+    }
+
+    private void applySeparable(int[][] image, RowKernels kernels) {
+        int width = image[0].length;
+        int height = image.length;
+        float[] padded = new float[width + horizontal.length - 1];
+        float[][] rows = new float[height][width];
+        for (int y = 0; y < height; y++) {
+            pad(image[y], padded, horizontal.length / 2);
+            kernels.correlate(padded, horizontal, rows[y], width);
+        }
+        float[] sum = new float[width];
+        int r = vertical.length / 2;
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(sum, 0);
+            for (int i = 0; i < vertical.length; i++)
+                kernels.axpy(vertical[i], rows[Math.clamp(y - r + i, 0, height - 1)], sum, width);
+            store(sum, image[y]);
+        }
+    }
+
+    private void apply2D(int[][] image, RowKernels kernels) {
+        int width = image[0].length;
+        int height = image.length;
+        int rx = kernel[0].length / 2;
+        int ry = kernel.length / 2;
+        float[][] padded = new float[height][width + 2 * rx];
+        for (int y = 0; y < height; y++)
+            pad(image[y], padded[y], rx);
+        float[] sum = new float[width];
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(sum, 0);
+            for (int i = 0; i < kernel.length; i++)
+                kernels.correlate(padded[Math.clamp(y - ry + i, 0, height - 1)], kernel[i], sum, width);
+            store(sum, image[y]);
+        }
+    }
+
+    /**
+     * Copies a row to the middle of a longer one, repeating the first and last tones r times on each side
+     */
+    private static void pad(int[] row, float[] padded, int r) {
+        for (int x = 0; x < padded.length; x++)
+            padded[x] = row[Math.clamp(x - r, 0, row.length - 1)];
+    }
+
+    private static void store(float[] sum, int[] row) {
+        for (int x = 0; x < row.length; x++)
+            row[x] = Math.clamp(Math.round(sum[x]), 0, 255);
+    }
+
+    private static float[] floats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            floats[i] = (float) values[i];
+        return floats;
+    }
+}
@@ -0,0 +1,150 @@
+package pt.iscte.greyditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of decoded images in gray tones, shared by all the windows.
+ * An image is identified by the real path of its file, its modification time and its size,
+ * so that a file changed on disk is decoded again (replacing its previous version). The least recently used images are
+ * discarded when the cache exceeds its size, and a file that is being decoded by one
+ * thread is not decoded again by another thread at the same time.
+ */
+final class DecodeCache {
+    private record Key(Path path, long modified, long size) {
+    }
+
+    private static final Map<Key, GreyBuffer> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<Key, CompletableFuture<GreyBuffer>> DECODING = new ConcurrentHashMap<>();
+    private static long maxBytes = 128L * 1024 * 1024;
+    private static long bytes;
+
+    private DecodeCache() {
+    }
+
+    /**
+     * @param maxBytes non-negative size (zero disables caching)
+     */
+    static synchronized void setMaxBytes(long maxBytes) {
+        DecodeCache.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Reads an image file in gray tones, decoding it only if it is not cached
+     * @return the image, which is shared and must not be modified
+     * @throws IOException if the file cannot be read or its format is not supported
+     */
+    static GreyBuffer read(File file) throws IOException {
+        Key key = key(file);
+        GreyBuffer cached = get(key);
+        if (cached != null)
+            return cached;
+
+        CompletableFuture<GreyBuffer> decoding = new CompletableFuture<>();
+        CompletableFuture<GreyBuffer> other = DECODING.putIfAbsent(key, decoding);
+        if (other != null)
+            return join(other);
+        try {
+            GreyBuffer image = decode(file);
+            put(key, image);
+            decoding.complete(image);
+            return image;
+        } catch (IOException | RuntimeException e) {
+            decoding.completeExceptionally(e);
+            throw e;
+        } finally {
+            DECODING.remove(key);
+        }
+    }
+
+    /**
+     * Reads an image file on the shared worker threads (see {@link #read(File)})
+     */
+    static CompletableFuture<GreyBuffer> readAsync(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Workers.io());
+    }
+
+    /**
+     * Whether the current version of a file is cached
+     */
+    static boolean contains(File file) {
+        try {
+            return get(key(file)) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static synchronized void clear() {
+        CACHE.clear();
+        bytes = 0;
+    }
+
+    private static GreyBuffer decode(File file) throws IOException {
+        if (Pgm.isPgm(file.toPath()))
+            return Pgm.read(file.toPath());
+        return GreyBuffer.of(Greyditor.getImageDataGray(Greyditor.readImage(file, 1)));
+    }
+
+    private static Key key(File file) throws IOException {
+        Path path = file.toPath().toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Key(path, attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    private static GreyBuffer join(CompletableFuture<GreyBuffer> decoding) throws IOException {
+        try {
+            return decoding.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw e;
+        }
+    }
+
+    private static synchronized GreyBuffer get(Key key) {
+        return CACHE.get(key);
+    }
+
+    private static synchronized void put(Key key, GreyBuffer image) {
+        long size = image.sizeInBytes();
+        if (size > maxBytes)
+            return;
+        Iterator<Map.Entry<Key, GreyBuffer>> it = CACHE.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, GreyBuffer> e = it.next();
+            if (e.getKey().path.equals(key.path)) {
+                bytes -= e.getValue().sizeInBytes();
+                it.remove();
+            }
+        }
+        CACHE.put(key, image);
+        bytes += size;
+        trim();
+    }
+
+    private static void trim() {
+        Iterator<GreyBuffer> it = CACHE.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().sizeInBytes();
+            it.remove();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package pt.iscte.greyditor;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.function.Consumer;
 
 public interface Editor {
@@ -23,25 +25,80 @@ public interface Editor {
     Selection getSelection();
 
     /**
-     * Returns the image currently visible in the editor
+     * Returns the image currently visible in the editor.
+     * While a file that is opened progressively is being decoded (see {@link Greyditor#setProgressiveOpen}),
+     * this is the enlarged preview.
      * @return a non-null well-formed matrix
      */
     int[][] getImage();
 
+    /**
+     * Returns the histogram of the image that operations work on (without the effects).
+     * The histogram is kept up to date as the image changes, so this takes constant time.
+     * By default, the histogram is computed on every call from {@link #getImage()},
+     * which is the only image an editor is required to expose, and so includes the effects.
+     * @return a snapshot of the current histogram
+     */
+    default Histogram getHistogram() {
+        return new Histogram(Histogram.count(GreyBuffer.of(getImage())));
+    }
+
+    /**
+     * Returns the summed-area table of the image that operations work on (without the effects),
+     * to obtain the sum, mean or variance of any region in constant time.
+     * The table is built on the first call after the image changes
+     * (by default, on every call from {@link #getImage()}, which includes the effects).
+     * @return the table of the current image
+     */
+    default IntegralImage getIntegralImage() {
+        return new IntegralImage(getImage());
+    }
+
+    /**
+     * Returns the measurements of the window so far: the time taken by each effect, operation,
+     * rendering and layout of the frame, and the frame rate.
+     * The same measurements are emitted as Flight Recorder events (pt.iscte.greyditor.Stage).
+     * By default, there are no measurements.
+     * @return a snapshot of the measurements
+     */
+    default PipelineMetrics getMetrics() {
+        return new PipelineMetrics(List.of(), Duration.ZERO, 0);
+    }
+
     /**
      * Zooms in the image
-     * @param factor zoom factor
+     * @param factor zoom factor, from 1 to 32
      */
     void zoom(int factor);
 
+    /**
+     * Zooms the image to any scale, where scales below 1 zoom out
+     * By default, the scale is rounded to a zoom factor.
+     * @param scale zoom scale, from 1/32 to 32
+     */
+    default void zoom(double scale) {
+        zoom((int) Math.max(1, Math.round(scale)));
+    }
+
     /**
      * Returns the current zoom factor
-     * @return an integer greater than zero
+     * @return an integer greater than zero (1 when zoomed out)
      */
     int getZoomFactor();
 
     /**
-     * Perform a drawing over the image
+     * Returns the current zoom scale
+     * By default, the zoom factor.
+     * @return a scale from 1/32 to 32
+     */
+    default double getZoom() {
+        return getZoomFactor();
+    }
+
+    /**
+     * Perform a drawing over the image.
+     * While a file that is opened progressively is being decoded, the drawing is performed on the full image
+     * once it is shown (and also on the preview right away, if the preview is editable).
      * @param action
      */
     void draw(Consumer<GreyImage> action);
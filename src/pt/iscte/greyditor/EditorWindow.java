@@ -3,13 +3,23 @@ package pt.iscte.greyditor;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -19,6 +29,13 @@ public class EditorWindow implements Editor {
     private static final Color[] PALETTE_COLOR = new Color[256];
     private static final int[] PALETTE = new int[256];
     private static final int PADDING = 20;
+    private static final double MIN_ZOOM = 1.0 / 32;
+    private static final double MAX_ZOOM = 32;
+    /**
+     * Largest dimension of the region of a tiled image that is edited, and of the images
+     * shown without zooming out when the window opens
+     */
+    private static final int VIEWPORT = 2 * TiledImage.TILE_SIZE;
 
     static {
         for (int i = 0; i < 256; i++) {
@@ -34,19 +51,85 @@ public class EditorWindow implements Editor {
     private final JLabel sizeLabel;
     private final JLabel pointLabel;
     private final JLabel toneLabel;
+    private final HistogramPanel histogramPanel;
 
     private final List<EffectMinMax> effects;
     private final Map<Effect, Supplier<Integer>> effectsSupplier;
 
     private final List<OperationTool> operations;
 
-    private int[][] image;
+    private GreyBuffer image;
+    private long imageVersion;
+    /**
+     * Matrix of the operation that is running (null if none), which drawings also update
+     * so that the operation sees them; its changes (including drawings) are recorded as a single step
+     */
+    private int[][] operating;
+    private final EffectPipeline pipeline;
+    private final RenderScheduler scheduler;
+    private final History history;
+    private final Metrics metrics;
+    private int[] toneCounts;
+    private IntegralImage integralImage;
+    private Preview preview;
+    private final List<JButton> saveButtons = new ArrayList<>();
+    private boolean closed;
+    private boolean failureShown;
+    private TiledImage tiled;
+    private int viewX;
+    private int viewY;
+    private CompletableFuture<?> saving;
 
-    record EffectMinMax(String text, Effect effect, int min, int max) {
+    record EffectMinMax(String text, Effect effect, int min, int max, EffectTraits traits) {
     }
 
-    record OperationTool(String text, Operation operation) {
+    /**
+     * How an operation is performed while the window shows a preview (see {@link #perform(Runnable)})
+     */
+    enum Role {
+        /** Changes the image, so it is performed again on the full image */
+        EDIT,
+        /** Does not change the image (zoom, load), so it is performed once */
+        VIEW,
+        /** Saves the image, so it is only available once the full image is shown */
+        SAVE
+    }
+
+    record OperationTool(String text, Operation operation, Role role) {
+        OperationTool(String text, Operation operation) {
+            this(text, operation, Role.EDIT);
+        }
+    }
+
+    /**
+     * An action performed while the window shows a preview, with the selection at the time
+     * and the integers given as input (to be given again when it is performed on the full image)
+     */
+    private record PreviewStep(Runnable action, Selection selection, List<Integer> answers) {
+    }
+
+    /**
+     * Actions performed while the window shows the preview of an image that is being decoded
+     */
+    private static final class Preview {
+        final boolean editable;
+        final List<PreviewStep> steps = new ArrayList<>();
+        PreviewStep current;
+        boolean replaying;
+        Iterator<Integer> answers;
+        /**
+         * Factor between the full image and the preview (1 if the steps are replayed on the preview)
+         */
+        int subsampling;
+        /**
+         * Zoom of the full image (the preview is shown at this zoom times the subsampling)
+         */
+        double scale;
 
+        Preview(boolean editable, int subsampling) {
+            this.editable = editable;
+            this.subsampling = subsampling;
+        }
     }
 
     public EditorWindow(Greyditor editor, String title, List<EffectMinMax> effects, List<OperationTool> operations) {
@@ -54,13 +137,18 @@ public class EditorWindow implements Editor {
         this.effects = effects;
         this.operations = operations;
         effectsSupplier = new HashMap<>();
+        metrics = new Metrics(title);
+        pipeline = new EffectPipeline(effects, editor.getCacheBytes(), editor.isParallel(), metrics);
+        scheduler = new RenderScheduler(Workers.executor(), this::effectsFailed);
+        history = new History(editor.getHistoryBytes());
 
         frame = new JFrame(title);
         frame.setLayout(new BorderLayout());
         frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addHistoryKeys();
 
         imagePanel = new ImagePanel();
-        frame.add(imagePanel, BorderLayout.CENTER);
+        frame.add(new JScrollPane(imagePanel), BorderLayout.CENTER);
 
         sizeLabel = new JLabel();
         JPanel sizePanel = new JPanel();
@@ -75,6 +163,9 @@ public class EditorWindow implements Editor {
         toneLabel = new JLabel(" ");
         toneLabel.setOpaque(true);
         footer.add(toneLabel);
+        histogramPanel = editor.isHistogramVisible() ? new HistogramPanel() : null;
+        if (histogramPanel != null)
+            footer.add(histogramPanel);
         frame.add(footer, BorderLayout.SOUTH);
 
         if(!effects.isEmpty() || !operations.isEmpty()) {
@@ -130,24 +221,148 @@ public class EditorWindow implements Editor {
     private void addOperations(JPanel toolsPanel) {
         for (OperationTool o : operations) {
             JButton button = new JButton(o.text);
-            button.addActionListener(_ -> {
-                int[][] newImage = o.operation instanceof OperationSimple ?
-                        ((OperationSimple) o.operation).run(image) :
-                        ((OperationEditor) o.operation).run(image, this);
-                if (newImage != null)
-                    image = newImage;
-                imagePanel.clearSelection();
-                imagePanel.refresh();
-            });
+            if (o.role == Role.EDIT)
+                button.addActionListener(_ -> perform(() -> runOperation(o)));
+            else
+                button.addActionListener(_ -> runOperation(o));
+            if (o.role == Role.SAVE)
+                saveButtons.add(button);
             toolsPanel.add(button);
         }
     }
 
+    private void runOperation(OperationTool o) {
+        GreyBuffer current = image;
+        GreyBuffer before = image.copy();
+        int[][] matrix = image.toMatrix();
+        Metrics.Probe probe = metrics.begin();
+        int[][] newImage;
+        operating = matrix;
+        try {
+            newImage = o.operation instanceof OperationSimple ?
+                    ((OperationSimple) o.operation).run(matrix) :
+                    ((OperationEditor) o.operation).run(matrix, this);
+        } finally {
+            operating = null;
+        }
+        metrics.end(probe, Metrics.OPERATION, o.text, (long) before.width * before.height);
+        // otherwise the image was replaced through the editor (undo/redo)
+        if (image == current) {
+            // the matrix includes the drawings
+            GreyBuffer result = GreyBuffer.of(newImage != null ? newImage : matrix);
+            if (tiled != null && (result.width != before.width || result.height != before.height || result.isRagged())) {
+                message("Operations cannot change the dimension of a region of a tiled image");
+                result = image;
+            }
+            // the drawings are already counted
+            updateHistogram(image, result);
+            image = result;
+            history.record(before, image);
+        }
+        imageVersion++;
+        integralImage = null;
+        imagePanel.clearSelection();
+        imagePanel.refresh();
+    }
+
+    /**
+     * Performs an action of the user, which is recorded while the window shows a preview:
+     * if the preview is editable, the action is performed on the preview and again on the full image,
+     * otherwise it is only performed on the full image
+     */
+    private void perform(Runnable action) {
+        if (preview == null || preview.current != null) {
+            action.run();
+            return;
+        }
+        PreviewStep step = new PreviewStep(action, getSelection(), new ArrayList<>());
+        preview.steps.add(step);
+        if (preview.editable) {
+            preview.current = step;
+            try {
+                action.run();
+            } finally {
+                preview.current = null;
+            }
+        }
+    }
+
+    /**
+     * Opens a window with a subsampled preview of an image that is being decoded, shown at its own size
+     * with the zoom multiplied by the subsampling, so that it takes the space of the full image
+     * @param size dimension of the full image
+     * @param editable true to perform the operations on the preview (see {@link #perform(Runnable)})
+     */
+    JFrame newWindow(int[][] preview, Dimension size, int subsampling, boolean editable) {
+        this.preview = new Preview(editable, subsampling);
+        // the preview is not the image to save
+        for (JButton button : saveButtons)
+            button.setEnabled(false);
+        JFrame window = newWindow(preview);
+        sizeLabel.setText(size.width + " x " + size.height + " (preview)");
+        return window;
+    }
+
+    /**
+     * Replaces the preview by the full image, performing on it the operations of the user so far.
+     * The zoom of the full image is applied when its first frame is shown.
+     * @param full the full image, or null if it could not be decoded (the preview is kept)
+     */
+    void endPreview(GreyBuffer full) {
+        Preview p = preview;
+        if (p == null || closed)
+            return;
+        for (JButton button : saveButtons)
+            button.setEnabled(true);
+        if (full == null && p.editable) {
+            preview = null;
+            sizeLabel.setText(image.width + " x " + image.height);
+            return;
+        }
+        if (full != null) {
+            // the history of the preview does not apply to the full image
+            history.close();
+            image = full.copy(); // the decoded image is shared through the cache
+            imageVersion++;
+            toneCounts = null;
+            integralImage = null;
+            if (histogramPanel != null)
+                histogramPanel.repaint();
+            imagePanel.clearSelection();
+            imagePanel.rescale(p.scale, imageVersion);
+        } else
+            p.subsampling = 1;
+        sizeLabel.setText(image.width + " x " + image.height);
+        p.replaying = true;
+        try {
+            for (PreviewStep step : p.steps) {
+                p.current = step;
+                p.answers = p.editable ? step.answers.iterator() : null;
+                step.action.run();
+            }
+        } finally {
+            preview = null;
+        }
+        imagePanel.refresh();
+    }
+
     JFrame newWindow(int[][] image) {
         if (isWellFormed(image)) {
-            this.image = image;
-            imagePanel.refresh();
-            frame.pack();
+            this.image = GreyBuffer.of(image);
+            imageVersion++;
+            // large images are zoomed out to fit, by powers of 2 as those are the levels of the mipmap
+            int subsampling = preview == null ? 1 : preview.subsampling;
+            while (imagePanel.scale > MIN_ZOOM &&
+                    (long) Math.max(this.image.width, this.image.height) * subsampling * imagePanel.scale > VIEWPORT)
+                imagePanel.scale /= 2;
+            if (preview != null) {
+                preview.scale = imagePanel.scale;
+                imagePanel.scale = Math.min(MAX_ZOOM, imagePanel.scale * subsampling);
+            }
+            toneCounts = null;
+            integralImage = null;
+            imagePanel.refreshNow();
+            pack();
             frame.setResizable(true);
             frame.setVisible(true);
             return frame;
@@ -155,11 +370,221 @@ public class EditorWindow implements Editor {
             return null;
     }
 
+    /**
+     * Opens a window with the top left region of a tiled image, which may be moved with Alt+arrows.
+     * The history of the window is cleared when the region moves, as it applies to the region only.
+     */
+    JFrame newWindow(TiledImage tiled) {
+        int[][] region;
+        try {
+            region = tiled.getRegion(0, 0, Math.min(VIEWPORT, tiled.getWidth()), Math.min(VIEWPORT, tiled.getHeight()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.tiled = tiled;
+        addViewportKeys();
+        JFrame window = newWindow(region);
+        sizeLabel.setText(sizeText());
+        return window;
+    }
+
+    private String sizeText() {
+        if (tiled == null)
+            return image.width + " x " + image.height;
+        return "x: " + viewX + "-" + (viewX + image.width - 1) + "  y: " + viewY + "-" + (viewY + image.height - 1) +
+                " of " + tiled.getWidth() + " x " + tiled.getHeight() + " (Alt+arrows to move)";
+    }
+
+    /**
+     * Moves the region of the tiled image that is edited, after writing back the current one
+     */
+    private void moveViewport(int dx, int dy) {
+        if (saving != null && !saving.isDone()) {
+            message("The image is being saved");
+            return;
+        }
+        int x = Math.clamp(viewX + (long) dx * image.width / 2, 0, tiled.getWidth() - image.width);
+        int y = Math.clamp(viewY + (long) dy * image.height / 2, 0, tiled.getHeight() - image.height);
+        if (x == viewX && y == viewY)
+            return;
+        try {
+            tiled.setRegion(viewX, viewY, image.toMatrix());
+            image = GreyBuffer.of(tiled.getRegion(x, y, image.width, image.height));
+        } catch (IOException e) {
+            System.err.println("Error moving the region: " + e.getMessage());
+            message("Error reading the image");
+            return;
+        }
+        viewX = x;
+        viewY = y;
+        history.close();
+        imageVersion++;
+        toneCounts = null;
+        integralImage = null;
+        if (histogramPanel != null)
+            histogramPanel.repaint();
+        imagePanel.clearSelection();
+        sizeLabel.setText(sizeText());
+        imagePanel.refresh();
+    }
+
+    private void addViewportKeys() {
+        InputMap keys = frame.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        ActionMap actions = frame.getRootPane().getActionMap();
+        int[][] moves = {{KeyEvent.VK_LEFT, -1, 0}, {KeyEvent.VK_RIGHT, 1, 0}, {KeyEvent.VK_UP, 0, -1}, {KeyEvent.VK_DOWN, 0, 1}};
+        for (int[] m : moves) {
+            String name = "move " + m[0];
+            keys.put(KeyStroke.getKeyStroke(m[0], InputEvent.ALT_DOWN_MASK), name);
+            actions.put(name, new AbstractAction() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    moveViewport(m[1], m[2]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the image with the effects applied, to be saved. The rows of a tiled image
+     * are computed band by band as they are read, after writing back the region being edited.
+     * @throws IllegalArgumentException if the image is tiled and an active effect may depend on any pixel
+     */
+    RowSource getOutputRows() throws IOException {
+        if (tiled == null)
+            return RowSource.of(getOutput());
+        EffectPipeline.Banded banded = pipeline.banded(effectValues());
+        tiled.setRegion(viewX, viewY, image.toMatrix());
+        return tiled.rows(banded.effect(), banded.halo());
+    }
+
+    /**
+     * Keeps the region of a tiled image from moving until the image is saved
+     */
+    void whileSaving(CompletableFuture<?> saving) {
+        this.saving = saving;
+    }
+
+    void close() {
+        closed = true;
+        scheduler.shutdown();
+        history.close();
+        if (tiled != null) {
+            TiledImage t = tiled;
+            Runnable release = () -> {
+                try {
+                    t.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing the tiled image: " + e.getMessage());
+                }
+            };
+            if (saving != null)
+                saving.whenComplete((_, _) -> release.run());
+            else
+                release.run();
+        }
+    }
+
+    void undo() {
+        perform(this::undoStep);
+    }
+
+    void redo() {
+        perform(this::redoStep);
+    }
+
+    private void undoStep() {
+        GreyBuffer previous = history.undo(image);
+        if (previous != null) {
+            updateHistogram(image, previous);
+            image = previous;
+            imageVersion++;
+            integralImage = null;
+            imagePanel.refresh();
+        }
+    }
+
+    private void redoStep() {
+        GreyBuffer next = history.redo(image);
+        if (next != null) {
+            updateHistogram(image, next);
+            image = next;
+            imageVersion++;
+            integralImage = null;
+            imagePanel.refresh();
+        }
+    }
+
+    private void addHistoryKeys() {
+        int mask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        InputMap keys = frame.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        ActionMap actions = frame.getRootPane().getActionMap();
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, mask), "undo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, mask | InputEvent.SHIFT_DOWN_MASK), "redo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, mask), "redo");
+        actions.put("undo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                undo();
+            }
+        });
+        actions.put("redo", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                redo();
+            }
+        });
+    }
+
     @Override
     public int[][] getImage() {
+        return getOutput().toMatrix();
+    }
+
+    /**
+     * Returns the image with the effects applied, which should not be modified
+     */
+    GreyBuffer getOutput() {
         return applyEffects(image);
     }
 
+    @Override
+    public Histogram getHistogram() {
+        if (toneCounts == null)
+            toneCounts = Histogram.count(image);
+        return new Histogram(toneCounts);
+    }
+
+    @Override
+    public PipelineMetrics getMetrics() {
+        return metrics.snapshot();
+    }
+
+    @Override
+    public IntegralImage getIntegralImage() {
+        if (integralImage == null)
+            integralImage = IntegralImage.of(image);
+        return integralImage;
+    }
+
+    /**
+     * Updates the tone counters after the image is replaced, recounting only the pixels that differ
+     * (the counters are discarded, to be counted again when needed, if the dimension changed)
+     */
+    private void updateHistogram(GreyBuffer before, GreyBuffer after) {
+        if (toneCounts != null) {
+            if (before.width == after.width && before.height == after.height && !before.isRagged() && !after.isRagged()) {
+                Selection changed = before.difference(after);
+                if (changed != null) {
+                    Histogram.count(before, changed, toneCounts, -1);
+                    Histogram.count(after, changed, toneCounts, 1);
+                }
+            } else
+                toneCounts = null;
+        }
+        if (histogramPanel != null)
+            histogramPanel.repaint();
+    }
+
     private boolean isWellFormed(int[][] matrix) {
         for (int i = 0; i < matrix.length - 1; i++)
             if (matrix[i] == null || matrix[i + 1] == null || matrix[i].length != matrix[i + 1].length)
@@ -169,16 +594,35 @@ public class EditorWindow implements Editor {
     }
 
 
+    /**
+     * Reports an error of the effects, showing a message only once until the effects succeed again
+     */
+    private void effectsFailed(Throwable error) {
+        System.err.println("Error applying the effects: " + error);
+        if (!failureShown) {
+            failureShown = true;
+            JOptionPane.showMessageDialog(frame, "Error applying the effects: " + error.getMessage());
+        }
+    }
+
     public void message(String text) {
+        // already shown when the operation was performed on the preview
+        if (preview != null && preview.answers != null)
+            return;
         JOptionPane.showMessageDialog(frame, text);
     }
 
     public int getInteger(String text) {
+        if (preview != null && preview.answers != null && preview.answers.hasNext())
+            return preview.answers.next();
         String input;
         do {
             input = JOptionPane.showInputDialog(frame, text);
             try {
-                return Integer.parseInt(input);
+                int answer = Integer.parseInt(input);
+                if (preview != null && preview.current != null)
+                    preview.current.answers.add(answer);
+                return answer;
             } catch (NumberFormatException e) {
 
             }
@@ -187,6 +631,10 @@ public class EditorWindow implements Editor {
 
 
     public Selection getSelection() {
+        if (preview != null && preview.replaying) {
+            Selection selection = preview.current.selection;
+            return selection == null ? null : selection.scaleUp(preview.subsampling);
+        }
         Selection selection = imagePanel.getSelection();
         return selection == null ? null : selection.scaleDown(imagePanel.scale);
     }
@@ -195,9 +643,21 @@ public class EditorWindow implements Editor {
     private class ImagePanel extends JPanel {
         Point from;
         Point to;
-        int[][] localImg = image == null ? new int[200][200] : deepCopy(image);
+        GreyBuffer localImg = new GreyBuffer(200, 200);
+        BufferedImage frameImage;
+        Mipmap mipmap;
+        boolean frameStale = true;
+        long frameRequested;
+        boolean frameShown;
+        long shownVersion = -1;
+        Integer[] shownValues;
 
-        int scale = 1;
+        double scale = 1;
+        /**
+         * Zoom to apply once a frame of a given version of the image is shown (0 if none)
+         */
+        double nextScale;
+        long nextScaleVersion;
 
         ImagePanel() {
             addMouseListener(new MouseAdapter() {
@@ -225,27 +685,27 @@ public class EditorWindow implements Editor {
                 @Override
                 public void mouseMoved(MouseEvent e) {
                     Point p = e.getPoint();
-                    if (p.x >= PADDING && p.y >= PADDING &&
-                            p.x < localImg[0].length * scale + PADDING && p.y < localImg.length * scale + PADDING) {
-                        int x = (p.x - PADDING) / scale;
-                        int y = (p.y - PADDING) / scale;
-                        pointLabel.setText("x: " + x + "  y: " + y);
-                        if (localImg[y] == null) {
+                    int x = (int) Math.floor((p.x - PADDING) / scale);
+                    int y = (int) Math.floor((p.y - PADDING) / scale);
+                    if (x >= 0 && y >= 0 && x < localImg.width && y < localImg.height) {
+                        pointLabel.setText("x: " + (viewX + x) + "  y: " + (viewY + y));
+                        if (localImg.rowLength(y) == GreyBuffer.NULL_ROW) {
                             toneLabel.setBackground(VALUE_OFF_COLOR);
                             toneLabel.setText("tone: y = " + y + " is null");
                         } else {
-                            if (x >= localImg[y].length) {
+                            if (x >= localImg.rowLength(y)) {
                                 toneLabel.setBackground(VALUE_OFF_COLOR);
                                 toneLabel.setText("tone: x = " + x + " is off");
                             } else {
-                                if (localImg[y][x] < 0 || localImg[y][x] > 255) {
+                                int tone = localImg.get(x, y);
+                                if (tone < 0 || tone > 255) {
                                     toneLabel.setBackground(VALUE_OFF_COLOR);
                                 } else {
-                                    toneLabel.setBackground(PALETTE_COLOR[localImg[y][x]]);
+                                    toneLabel.setBackground(PALETTE_COLOR[tone]);
                                 }
-                                int fg = localImg[y][x] < 128 ? 255 : 0;
+                                int fg = tone < 128 ? 255 : 0;
                                 toneLabel.setForeground(PALETTE_COLOR[fg]);
-                                toneLabel.setText("tone: " + localImg[y][x]);
+                                toneLabel.setText("tone: " + tone);
                             }
                         }
                     } else {
@@ -262,7 +722,9 @@ public class EditorWindow implements Editor {
             super.paintComponent(g);
             final int lineWidth = 2;
             Graphics2D g2d = (Graphics2D) g;
-            g2d.drawImage(matrixToImage(localImg, scale), PADDING, PADDING, null);
+            paintImage(g2d);
+            if (editor.isMetricsOverlay())
+                paintOverlay(g2d);
             g2d.setStroke(new BasicStroke(lineWidth));
             g2d.setColor(Color.CYAN);
             float[] dashPattern = {10.0f, 5.0f}; // 10px dash and 5px space
@@ -277,6 +739,76 @@ public class EditorWindow implements Editor {
             }
         }
 
+        /**
+         * Draws the part of the image that intersects the clip region, scaling the cached frame.
+         * The frame is rendered again in place when the image changes, unless its dimension changed.
+         * Zooming in draws only the visible pixels of the frame enlarged, while zooming out draws
+         * a reduction of the frame from its mipmap.
+         */
+        private void paintImage(Graphics2D g2d) {
+            if (frameImage == null || frameStale) {
+                Metrics.Probe probe = metrics.begin();
+                if (frameImage == null || frameImage.getWidth() != localImg.width || frameImage.getHeight() != localImg.height)
+                    frameImage = render(localImg, 1);
+                else
+                    render(localImg, frameImage, new Selection(0, 0, localImg.width, localImg.height));
+                mipmap = null;
+                metrics.end(probe, Metrics.RENDER, "frame", (long) localImg.width * localImg.height);
+            }
+            frameStale = false;
+            if (scale < 1) {
+                if (mipmap == null)
+                    mipmap = new Mipmap(frameImage);
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(mipmap.level(scale), PADDING, PADDING,
+                        scaled(localImg.width), scaled(localImg.height), null);
+            } else {
+                Rectangle clip = g2d.getClipBounds();
+                if (clip == null)
+                    clip = new Rectangle(getSize());
+                int x0 = Math.max(0, (int) Math.floor((clip.x - PADDING) / scale));
+                int y0 = Math.max(0, (int) Math.floor((clip.y - PADDING) / scale));
+                int x1 = Math.min(localImg.width, (int) Math.ceil((clip.x + clip.width - PADDING) / scale));
+                int y1 = Math.min(localImg.height, (int) Math.ceil((clip.y + clip.height - PADDING) / scale));
+                if (x0 < x1 && y0 < y1) {
+                    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                    g2d.drawImage(frameImage,
+                            PADDING + scaled(x0), PADDING + scaled(y0), PADDING + scaled(x1), PADDING + scaled(y1),
+                            x0, y0, x1, y1, null);
+                }
+            }
+            if (frameShown) {
+                metrics.frame(System.nanoTime() - frameRequested);
+                frameRequested = 0;
+                frameShown = false;
+                if (editor.isMetricsOverlay())
+                    repaint(0, 0, getWidth(), PADDING);
+            }
+        }
+
+        /**
+         * Draws the time of the last frame and the frame rate above the image
+         */
+        private void paintOverlay(Graphics2D g2d) {
+            PipelineMetrics m = metrics.snapshot();
+            g2d.setColor(Color.BLACK);
+            g2d.setFont(g2d.getFont().deriveFont(11f));
+            g2d.drawString(String.format("%.1f ms  %d fps", m.lastFrame().toNanos() / 1e6, m.framesPerSecond()),
+                    PADDING, PADDING - 6);
+        }
+
+        /**
+         * Length on the screen of a length of the image
+         */
+        int scaled(int length) {
+            return (int) Math.round(length * scale);
+        }
+
+        private void requestFrame() {
+            if (frameRequested == 0)
+                frameRequested = System.nanoTime();
+        }
+
         Selection getSelection() {
             if (from == null)
                 return null;
@@ -291,13 +823,91 @@ public class EditorWindow implements Editor {
                 );
         }
 
+        /**
+         * Schedules the effects to be applied in the background
+         */
         public void refresh() {
-            localImg = applyEffects(image);
-            setPreferredSize(new Dimension(this.localImg[0].length * scale + PADDING * 2,
-                    this.localImg.length * scale + PADDING * 2));
+            requestFrame();
+            GreyBuffer source = image.copy(); // drawings change the image in place
+            long version = imageVersion;
+            Integer[] values = effectValues();
+            scheduler.submit(() -> pipeline.apply(source, version, values), img -> {
+                failureShown = false;
+                shownVersion = version;
+                shownValues = values;
+                show(img);
+            });
+        }
+
+        /**
+         * Applies the effects immediately, discarding any scheduled refresh
+         */
+        public void refreshNow() {
+            requestFrame();
+            scheduler.cancel();
+            shownVersion = imageVersion;
+            shownValues = effectValues();
+            show(pipeline.apply(image, shownVersion, shownValues));
+        }
+
+        /**
+         * Updates a region of the image after a change of the source pixels in that region only.
+         * If the frame being shown is up-to-date with the previous version of the image and the effects
+         * are all point-wise, only the region goes through the effects and is rendered again.
+         * @param previousVersion version of the image before the change
+         * @param region bounds of the changed pixels
+         */
+        void refresh(long previousVersion, Selection region) {
+            Integer[] values = effectValues();
+            GreyBuffer patch = shownVersion == previousVersion && Arrays.equals(values, shownValues) ?
+                    pipeline.applyRegion(image, region, values) : null;
+            if (patch == null) {
+                refresh();
+                return;
+            }
+            requestFrame();
+            scheduler.cancel();
+            shownVersion = imageVersion;
+            localImg = localImg.copy();
+            localImg.paste(patch, region.x(), region.y());
+            if (!frameStale) {
+                Metrics.Probe probe = metrics.begin();
+                render(localImg, frameImage, region);
+                mipmap = null;
+                metrics.end(probe, Metrics.RENDER, "region", (long) region.width() * region.height());
+            }
+            frameShown = true;
+            int x0 = scaled(region.x());
+            int y0 = scaled(region.y());
+            repaint(PADDING + x0 - 1, PADDING + y0 - 1,
+                    scaled(region.x() + region.width()) - x0 + 2, scaled(region.y() + region.height()) - y0 + 2);
+        }
+
+        void show(GreyBuffer img) {
+            if (img != localImg)
+                frameStale = true;
+            if (nextScale != 0 && shownVersion >= nextScaleVersion) {
+                scale = nextScale;
+                nextScale = 0;
+            }
+            // zooming only resizes the panel within its scroll pane
+            boolean resized = img.width != localImg.width || img.height != localImg.height;
+            frameShown = true;
+            localImg = img;
+            Dimension size = new Dimension(scaled(localImg.width) + PADDING * 2,
+                    scaled(localImg.height) + PADDING * 2);
             repaint();
-            sizeLabel.setText(localImg[0].length + " x " + localImg.length);
-            frame.pack();
+            if (!size.equals(getPreferredSize())) {
+                setPreferredSize(size);
+                if (preview == null)
+                    sizeLabel.setText(tiled == null ? localImg.width + " x " + localImg.height : sizeText());
+                if (resized) {
+                    Metrics.Probe probe = metrics.begin();
+                    pack();
+                    metrics.end(probe, Metrics.LAYOUT, "pack", 0);
+                } else
+                    revalidate();
+            }
         }
 
         public void clearSelection() {
@@ -305,61 +915,116 @@ public class EditorWindow implements Editor {
             to = null;
         }
 
-        public void setScale(int factor) {
-            scale = factor;
-            refresh();
+        public void setScale(double scale) {
+            this.scale = scale;
+            nextScale = 0;
+            show(localImg);
+        }
+
+        /**
+         * Changes the zoom when the frame of a version of the image is shown, keeping the current zoom until then
+         */
+        void rescale(double scale, long version) {
+            nextScale = scale;
+            nextScaleVersion = version;
         }
     }
 
 
-    private int[][] applyEffects(int[][] image) {
-        int[][] copy = deepCopy(image);
-        for (EffectMinMax e : effects) {
-            Supplier<Integer> sup = effectsSupplier.get(e.effect);
-            if (e.effect instanceof EffectSimple && sup.get() != null)
-                ((EffectSimple) e.effect).apply(copy);
-            else if (e.effect instanceof EffectValue)
-                ((EffectValue) e.effect).apply(copy, sup.get());
+    /**
+     * Bars with the number of pixels of each tone, scaled to the most frequent tone
+     */
+    private class HistogramPanel extends JPanel {
+        HistogramPanel() {
+            setAlignmentX(Component.LEFT_ALIGNMENT);
+            setPreferredSize(new Dimension(256, 64));
+            setMaximumSize(new Dimension(256, 64));
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (image == null)
+                return;
+            Histogram histogram = getHistogram();
+            int max = 1;
+            for (int t = 0; t < 256; t++)
+                max = Math.max(max, histogram.count(t));
+            int h = getHeight();
+            g.setColor(Color.DARK_GRAY);
+            for (int t = 0; t < 256; t++) {
+                int bar = (int) ((long) histogram.count(t) * h / max);
+                g.fillRect(t, h - bar, 1, bar);
+            }
         }
+    }
 
-        return copy;
+
+    private GreyBuffer applyEffects(GreyBuffer image) {
+        return pipeline.apply(image, imageVersion, effectValues());
     }
 
-    private static int[][] deepCopy(int[][] original) {
-        int[][] copy = new int[original.length][];
-        for (int i = 0; i < original.length; i++) {
-            copy[i] = new int[original[i].length];
-            System.arraycopy(original[i], 0, copy[i], 0, original[i].length);
+    private Integer[] effectValues() {
+        Integer[] values = new Integer[effects.size()];
+        for (int i = 0; i < values.length; i++) {
+            EffectMinMax e = effects.get(i);
+            values[i] = effectsSupplier.get(e.effect).get();
         }
-        return copy;
+        return values;
     }
 
     static BufferedImage matrixToImage(int[][] matrix, int scale) {
-        int width = matrix[0].length * scale;
-        int height = matrix.length * scale;
+        return render(GreyBuffer.of(matrix), scale);
+    }
+
+    static BufferedImage render(GreyBuffer buffer, int scale) {
+        int width = buffer.width * scale;
+        int height = buffer.height * scale;
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int xs = x / scale;
-                int ys = y / scale;
-                if (matrix[ys] == null)
-                    image.setRGB(x, y, VALUE_OFF);
-                else {
-                    if (xs >= matrix[ys].length)
-                        image.setRGB(x, y, VALUE_OFF);
-                    else {
-                        int constrain = Math.max(0, Math.min(matrix[ys][xs], 255));
-                        if (constrain != matrix[ys][xs])
-                            image.setRGB(x, y, VALUE_OFF);
-                        else
-                            image.setRGB(x, y, PALETTE[constrain]);
-                    }
-                }
-            }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int ys = 0; ys < buffer.height; ys++) {
+            int offset = ys * scale * width;
+            renderRow(buffer, ys, 0, buffer.width, pixels, offset, scale);
+            for (int i = 1; i < scale; i++)
+                System.arraycopy(pixels, offset, pixels, offset + i * width, width);
         }
         return image;
     }
 
+    /**
+     * Renders a region of a buffer into an image of the same dimension (scale 1)
+     */
+    static void render(GreyBuffer buffer, BufferedImage image, Selection region) {
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int ys = region.y(); ys < region.y() + region.height(); ys++)
+            renderRow(buffer, ys, region.x(), region.x() + region.width(), pixels, ys * buffer.width, 1);
+    }
+
+    /**
+     * Renders the pixels [from, to[ of a row, where offset is the index of the row in the image
+     */
+    private static void renderRow(GreyBuffer buffer, int ys, int from, int to, int[] pixels, int offset, int scale) {
+        int n = Math.min(to, Math.max(0, buffer.rowLength(ys)));
+        byte[] tones = buffer.row(ys);
+        int[] outliers = buffer.outlierRow(ys);
+        int x = offset + from * scale;
+        for (int xs = from; xs < n; xs++) {
+            int rgb;
+            if (outliers != null) {
+                int tone = outliers[xs];
+                rgb = (tone & ~0xFF) == 0 ? PALETTE[tone] : VALUE_OFF;
+            } else
+                rgb = PALETTE[tones[xs] & 0xFF];
+            if (scale == 1)
+                pixels[x++] = rgb;
+            else {
+                Arrays.fill(pixels, x, x + scale, rgb);
+                x += scale;
+            }
+        }
+        Arrays.fill(pixels, x, offset + to * scale, VALUE_OFF);
+    }
+
 
     private boolean valid(int tone) {
         return tone >= 0 && tone <= 255;
@@ -367,31 +1032,64 @@ public class EditorWindow implements Editor {
 
     @Override
     public void zoom(int factor) {
-        if (factor >= 1 && factor <= 5) {
-            imagePanel.setScale(factor);
+        zoom((double) factor);
+    }
+
+    @Override
+    public void zoom(double scale) {
+        // already zoomed when the operation was performed on the preview
+        if (preview != null && preview.replaying)
+            return;
+        if (scale >= MIN_ZOOM && scale <= MAX_ZOOM) {
+            imagePanel.clearSelection();
+            if (preview != null && preview.subsampling > 1) {
+                preview.scale = scale;
+                scale = Math.min(MAX_ZOOM, scale * preview.subsampling);
+            }
+            imagePanel.setScale(scale);
             frame.repaint();
-            frame.pack();
         }
     }
 
+    /**
+     * Fits the window to its contents, without exceeding the screen
+     */
+    private void pack() {
+        frame.pack();
+        Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+        if (frame.getWidth() > screen.width || frame.getHeight() > screen.height)
+            frame.setSize(Math.min(frame.getWidth(), screen.width), Math.min(frame.getHeight(), screen.height));
+    }
+
     @Override
     public int getZoomFactor() {
+        return Math.max(1, (int) imagePanel.scale);
+    }
+
+    @Override
+    public double getZoom() {
         return imagePanel.scale;
     }
 
     @Override
     public void draw(Consumer<GreyImage> action) {
-        GreyImage img = new GreyImage() {
+        perform(() -> drawNow(action));
+    }
+
+    private void drawNow(Consumer<GreyImage> action) {
+        var img = new GreyImage() {
             int tone = 255;
+            GreyBuffer before; // copied at the first change, unless recorded with the operation
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
 
             @Override
             public int getWidth() {
-                return image[0].length;
+                return image.width;
             }
 
             @Override
             public int getHeight() {
-                return image.length;
+                return image.height;
             }
 
             @Override
@@ -419,12 +1117,38 @@ public class EditorWindow implements Editor {
             public void paint(int x, int y, int tone) {
                 if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight())
                     System.err.println("invalid point: " + x + ", " + y);
-                else
-                    image[y][x] = tone;
+                else {
+                    if (toneCounts != null) {
+                        int old = image.get(x, y);
+                        if ((old & ~0xFF) == 0)
+                            toneCounts[old]--;
+                        if ((tone & ~0xFF) == 0)
+                            toneCounts[tone]++;
+                    }
+                    if (before == null && operating == null)
+                        before = image.copy();
+                    image.set(x, y, tone);
+                    if (operating != null && y < operating.length && x < operating[y].length)
+                        operating[y][x] = tone;
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                }
             }
         };
         action.accept(img);
-        imagePanel.refresh();
+        if (img.maxX < 0)
+            return;
+        Selection dirty = new Selection(img.minX, img.minY, img.maxX - img.minX + 1, img.maxY - img.minY + 1);
+        // otherwise recorded with the changes of the operation
+        if (img.before != null)
+            history.record(img.before, image, dirty);
+        if (histogramPanel != null)
+            histogramPanel.repaint();
+        long previousVersion = imageVersion++;
+        integralImage = null;
+        imagePanel.refresh(previousVersion, dirty);
     }
 }
 
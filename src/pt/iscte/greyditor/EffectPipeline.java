@@ -0,0 +1,312 @@
+package pt.iscte.greyditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies the chain of effects of an editor window, memoizing the output of every stage.
+ * The output of a stage is identified by the version of the source image and the values
+ * of all the effects up to that stage, so that changing the value of the k-th effect
+ * only recomputes the stages from k onwards.
+ * <p>
+ * The stages are planned from the traits of the effects (see {@link EffectTraits}):
+ * effects at their identity value (and tone expressions that keep every tone) are skipped,
+ * a run of consecutive point-wise effects (filters included) is a single stage that goes
+ * through the image once, band by band, and thread-safe effects that are point-wise, row-wise
+ * or of a known neighbourhood are applied in parallel to bands of rows. The results of impure
+ * effects, and of those after them, are not cached.
+ * The matrix handed to the effects is reused across calls, row by row, as long as the dimension does not change.
+ */
+class EffectPipeline {
+    private final List<EditorWindow.EffectMinMax> effects;
+    private final Map<StageKey, GreyBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private final boolean parallel;
+    private final Metrics metrics;
+    private long bytes;
+    private int[][] work = new int[0][];
+
+    record StageKey(long version, List<Integer> values) {
+    }
+
+    /**
+     * @param halo rows above and below each row that the stage reads, or -1 if it may read any row
+     */
+    private record Stage(int end, String name, EffectSimple action, boolean pointwise, boolean pure, int halo) {
+    }
+
+    /**
+     * The active effects as a single effect that can be applied to bands of rows (for instance, of a tiled image)
+     * @param halo rows above and below each band that the effect reads
+     */
+    record Banded(EffectSimple effect, int halo) {
+    }
+
+    /**
+     * Rows of each band of a run of point-wise effects, so that a band of a large image fits in the cache
+     */
+    private static final int POINT_BAND_ROWS = 32;
+
+    EffectPipeline(List<EditorWindow.EffectMinMax> effects, long maxBytes, boolean parallel) {
+        this(effects, maxBytes, parallel, null);
+    }
+
+    /**
+     * @param metrics collector of the measurements of each stage, or null
+     */
+    EffectPipeline(List<EditorWindow.EffectMinMax> effects, long maxBytes, boolean parallel, Metrics metrics) {
+        this.effects = effects;
+        this.maxBytes = maxBytes;
+        this.parallel = parallel;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Applies the effects to a copy of the image
+     * @param image source image (not modified)
+     * @param version version of the source image, to be changed whenever its pixels change
+     * @param values value of each effect (1 for active check boxes), null for inactive effects
+     * @return a new buffer with the result, which should not be modified
+     */
+    synchronized GreyBuffer apply(GreyBuffer image, long version, Integer[] values) {
+        List<Stage> stages = plan(values);
+        if (stages.isEmpty())
+            return image.copy();
+
+        int cacheable = 0;
+        while (cacheable < stages.size() && stages.get(cacheable).pure)
+            cacheable++;
+        int start = cacheable;
+        GreyBuffer output = null;
+        while (output == null && start > 0) {
+            output = cache.get(key(version, values, stages.get(start - 1).end));
+            if (output == null)
+                start--;
+        }
+        if (output == null) {
+            evictOtherVersions(version);
+            output = image;
+        }
+        if (start == stages.size())
+            return output;
+
+        int[][] matrix = workMatrix(output);
+        for (int i = start; i < stages.size(); i++) {
+            Stage s = stages.get(i);
+            run(s, matrix);
+            boolean last = i == stages.size() - 1;
+            if (last || maxBytes > 0 && i < cacheable)
+                output = GreyBuffer.of(matrix);
+            if (i < cacheable)
+                store(key(version, values, s.end), output);
+        }
+        return output;
+    }
+
+    /**
+     * Fills the reusable matrix with the tones of an image, allocating only the rows that
+     * are missing, have a different length, or are shared with another row
+     * (effects may replace the rows of the matrix, e.g. image[y] = image[0])
+     */
+    private int[][] workMatrix(GreyBuffer image) {
+        if (work.length != image.height)
+            work = new int[image.height][];
+        Set<int[]> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int y = 0; y < image.height; y++) {
+            int length = image.rowLength(y);
+            if (length == GreyBuffer.NULL_ROW)
+                work[y] = null;
+            else {
+                if (work[y] == null || work[y].length != length || !seen.add(work[y]))
+                    work[y] = new int[length];
+                image.getRow(y, work[y]);
+            }
+        }
+        return work;
+    }
+
+    /**
+     * Applies the effects to a region of the image, which is only possible if all of them are point-wise
+     * @param image source image (not modified)
+     * @param region bounds of the region
+     * @param values value of each effect, null for inactive effects
+     * @return a new buffer with the dimension of the region, or null if some active effect is not point-wise
+     */
+    synchronized GreyBuffer applyRegion(GreyBuffer image, Selection region, Integer[] values) {
+        List<Stage> stages = plan(values);
+        if (image.isRagged() || !stages.stream().allMatch(Stage::pointwise))
+            return null;
+        int[][] work = image.region(region).toMatrix();
+        for (Stage s : stages)
+            run(s, work);
+        return GreyBuffer.of(work);
+    }
+
+    /**
+     * Combines the active effects into one that is applied to bands of rows, each with the rows
+     * above and below it that the effects depend on (the effects are never applied at the same time
+     * as the pipeline itself, as they may not be thread-safe)
+     * @param values value of each effect, null for inactive effects
+     * @throws IllegalArgumentException if an active effect may depend on any pixel of the image
+     */
+    Banded banded(Integer[] values) {
+        List<Stage> stages = plan(values);
+        int halo = 0;
+        for (Stage s : stages) {
+            if (s.halo < 0)
+                throw new IllegalArgumentException("The effect " + s.name + " cannot be applied to bands of the image");
+            halo += s.halo;
+        }
+        return new Banded(band -> {
+            synchronized (this) {
+                for (Stage s : stages)
+                    run(s, band);
+            }
+        }, halo);
+    }
+
+    synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+        work = new int[0][];
+    }
+
+    private void run(Stage stage, int[][] matrix) {
+        if (metrics == null) {
+            stage.action.apply(matrix);
+            return;
+        }
+        Metrics.Probe probe = metrics.begin();
+        stage.action.apply(matrix);
+        long pixels = 0;
+        for (int[] row : matrix)
+            pixels += row == null ? 0 : row.length;
+        metrics.end(probe, Metrics.EFFECT, stage.name, pixels);
+    }
+
+    private List<Stage> plan(Integer[] values) {
+        List<Stage> stages = new ArrayList<>();
+        PointRun run = new PointRun();
+        for (int i = 0; i < effects.size(); i++) {
+            EditorWindow.EffectMinMax e = effects.get(i);
+            EffectTraits traits = e.traits();
+            Integer value = values[i];
+            if (value == null || e.effect() instanceof EffectValue && traits.isIdentity(value) ||
+                    e.effect() instanceof CompiledFilter f && f.expression() != null && f.expression().bind(value).length == 0)
+                continue;
+
+            EffectSimple action = switch (e.effect()) {
+                case EffectSimple simple -> simple;
+                case EffectValue v -> img -> v.apply(img, value);
+                default -> throw new IllegalStateException("unknown effect: " + e.effect());
+            };
+            if (traits.locality() == EffectTraits.Locality.POINT) {
+                if (e.effect() instanceof CompiledFilter f)
+                    run.add(f, e.effect() instanceof EffectValue ? value : 0, e.text());
+                else
+                    run.add(action, traits, e.text());
+                continue;
+            }
+            if (!run.isEmpty()) {
+                stages.add(run.stage(i));
+                run = new PointRun();
+            }
+            boolean concurrent = parallel && traits.isThreadSafe();
+            EffectSimple planned = switch (traits.locality()) {
+                case ROW -> concurrent ? RowBands.parallel(action) : action;
+                case NEIGHBOURHOOD -> concurrent ? RowBands.parallel(action, traits.radius(value)) : action;
+                default -> action;
+            };
+            int halo = switch (traits.locality()) {
+                case NEIGHBOURHOOD -> Math.max(0, traits.radius(value));
+                case GLOBAL -> -1;
+                default -> 0;
+            };
+            stages.add(new Stage(i + 1, e.text(), planned, false, traits.isPure(), halo));
+        }
+        if (!run.isEmpty())
+            stages.add(run.stage(effects.size()));
+        return stages;
+    }
+
+    /**
+     * Consecutive point-wise effects, where consecutive filters are fused into one
+     */
+    private class PointRun {
+        final List<EffectSimple> actions = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        FusedFilter filters;
+        boolean threadSafe = true;
+        boolean pure = true;
+
+        boolean isEmpty() {
+            return names.isEmpty();
+        }
+
+        void add(CompiledFilter filter, int value, String name) {
+            if (filters == null) {
+                filters = new FusedFilter();
+                actions.add(filters);
+            }
+            filters.add(filter, value);
+            names.add(name);
+        }
+
+        void add(EffectSimple action, EffectTraits traits, String name) {
+            filters = null;
+            actions.add(action);
+            names.add(name);
+            threadSafe &= traits.isThreadSafe();
+            pure &= traits.isPure();
+        }
+
+        Stage stage(int end) {
+            EffectSimple chain;
+            if (actions.size() == 1)
+                chain = actions.getFirst();
+            else
+                chain = img -> RowBands.serial(img, band -> {
+                    for (EffectSimple a : actions)
+                        a.apply(band);
+                }, POINT_BAND_ROWS);
+            return new Stage(end, String.join("+", names), parallel && threadSafe ? RowBands.parallel(chain) : chain, true, pure, 0);
+        }
+    }
+
+    private static StageKey key(long version, Integer[] values, int end) {
+        return new StageKey(version, Arrays.asList(Arrays.copyOf(values, end)));
+    }
+
+    private void store(StageKey key, GreyBuffer output) {
+        long size = output.sizeInBytes();
+        if (size > maxBytes)
+            return;
+        GreyBuffer old = cache.put(key, output);
+        if (old != null)
+            bytes -= old.sizeInBytes();
+        bytes += size;
+        Iterator<GreyBuffer> it = cache.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().sizeInBytes();
+            it.remove();
+        }
+    }
+
+    private void evictOtherVersions(long version) {
+        Iterator<Map.Entry<StageKey, GreyBuffer>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<StageKey, GreyBuffer> e = it.next();
+            if (e.getKey().version != version) {
+                bytes -= e.getValue().sizeInBytes();
+                it.remove();
+            }
+        }
+    }
+}
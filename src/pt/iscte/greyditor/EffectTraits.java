@@ -0,0 +1,135 @@
+package pt.iscte.greyditor;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Optional description of an effect, which allows the editor to apply it more efficiently:
+ * <ul>
+ *     <li>a slider value for which the effect leaves the image unchanged, so that it is skipped;</li>
+ *     <li>which pixels the result of each pixel depends on, so that point-wise effects are applied
+ *     together with the adjacent filters in a single pass, and effects are split into bands of rows
+ *     to run in parallel (see {@link Greyditor#setParallel(boolean)});</li>
+ *     <li>whether the effect is pure (the same input always gives the same result), so that its results may be cached;</li>
+ *     <li>whether the effect may run on several threads at the same time.</li>
+ * </ul>
+ * Descriptions are immutable, each method returns a new one.
+ * <pre>
+ * configuration.addEffect("Lines", this::lines, 0, 50, EffectTraits.global().identity(0));
+ * configuration.addEffect("Blur", Convolution.gaussianBlur(), 0, 20,
+ *         EffectTraits.neighbourhood(radius -> radius).identity(0).threadSafe());
+ * </pre>
+ */
+public final class EffectTraits {
+    public enum Locality {
+        /**
+         * The tone of each pixel depends only on its previous tone (not on its position)
+         */
+        POINT,
+        /**
+         * Each row is transformed independently of the others and of its position
+         */
+        ROW,
+        /**
+         * The tone of each pixel depends on the pixels within a given distance (and not on its position)
+         */
+        NEIGHBOURHOOD,
+        /**
+         * The tone of each pixel may depend on any pixel or on its position (the default)
+         */
+        GLOBAL
+    }
+
+    static final EffectTraits FILTER = new EffectTraits(Locality.POINT, _ -> 0, null, true, true);
+    static final EffectTraits EFFECT = global();
+
+    private final Locality locality;
+    private final IntUnaryOperator radius;
+    private final Integer identity;
+    private final boolean pure;
+    private final boolean threadSafe;
+
+    private EffectTraits(Locality locality, IntUnaryOperator radius, Integer identity, boolean pure, boolean threadSafe) {
+        this.locality = locality;
+        this.radius = radius;
+        this.identity = identity;
+        this.pure = pure;
+        this.threadSafe = threadSafe;
+    }
+
+    /**
+     * Effect whose pixels depend only on their own tone
+     */
+    public static EffectTraits pointwise() {
+        return new EffectTraits(Locality.POINT, _ -> 0, null, true, false);
+    }
+
+    /**
+     * Effect that transforms every row independently of the others and of its position
+     */
+    public static EffectTraits rowwise() {
+        return new EffectTraits(Locality.ROW, _ -> 0, null, true, false);
+    }
+
+    /**
+     * Effect whose pixels depend on the pixels up to a number of rows above and below
+     */
+    public static EffectTraits neighbourhood(int radius) {
+        return neighbourhood(_ -> radius);
+    }
+
+    /**
+     * Effect whose pixels depend on the pixels up to a number of rows above and below, given by the slider value
+     */
+    public static EffectTraits neighbourhood(IntUnaryOperator radius) {
+        return new EffectTraits(Locality.NEIGHBOURHOOD, radius, null, true, false);
+    }
+
+    /**
+     * Effect without any known locality (the default)
+     */
+    public static EffectTraits global() {
+        return new EffectTraits(Locality.GLOBAL, _ -> 0, null, true, false);
+    }
+
+    /**
+     * Declares the slider value for which the effect leaves the image unchanged
+     */
+    public EffectTraits identity(int value) {
+        return new EffectTraits(locality, radius, value, pure, threadSafe);
+    }
+
+    /**
+     * Declares that the effect may give different results for the same image (for instance, random noise),
+     * so that its result, and the results of the effects that follow, are never cached
+     */
+    public EffectTraits impure() {
+        return new EffectTraits(locality, radius, identity, false, threadSafe);
+    }
+
+    /**
+     * Declares that the effect may be applied to different parts of the image at the same time
+     */
+    public EffectTraits threadSafe() {
+        return new EffectTraits(locality, radius, identity, pure, true);
+    }
+
+    Locality locality() {
+        return locality;
+    }
+
+    int radius(int value) {
+        return radius.applyAsInt(value);
+    }
+
+    boolean isIdentity(int value) {
+        return identity != null && identity == value;
+    }
+
+    boolean isPure() {
+        return pure;
+    }
+
+    boolean isThreadSafe() {
+        return threadSafe;
+    }
+}
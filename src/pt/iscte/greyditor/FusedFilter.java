@@ -0,0 +1,83 @@
+package pt.iscte.greyditor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A run of consecutive filters composed into a single lookup table,
+ * so that the image is traversed only once.
+ * If all the filters are tone expressions and the Vector API is available, their steps
+ * are concatenated instead, to be evaluated in vector lanes rather than through the table.
+ */
+class FusedFilter implements EffectSimple {
+    private final List<CompiledFilter> filters = new ArrayList<>();
+    private final List<Integer> values = new ArrayList<>();
+    private int[] table;
+    private float[] program;
+
+    void add(CompiledFilter filter, int value) {
+        filters.add(filter);
+        values.add(value);
+        table = null;
+        program = null;
+    }
+
+    boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    int transform(int tone) {
+        for (int i = 0; i < filters.size(); i++)
+            tone = filters.get(i).lookup(tone, values.get(i));
+        return tone;
+    }
+
+    int[] table() {
+        if (filters.size() == 1)
+            return filters.getFirst().table(values.getFirst());
+        if (table == null) {
+            int[] composed = new int[256];
+            for (int t = 0; t < 256; t++)
+                composed[t] = transform(t);
+            table = composed;
+        }
+        return table;
+    }
+
+    /**
+     * Returns the concatenated steps of the filters
+     * @return the steps, or null if some filter is not a tone expression
+     */
+    float[] program() {
+        if (program == null) {
+            List<float[]> programs = new ArrayList<>();
+            for (int i = 0; i < filters.size(); i++) {
+                ToneExpression e = filters.get(i).expression();
+                if (e == null)
+                    return null;
+                programs.add(e.bind(values.get(i)));
+            }
+            program = ToneExpression.concat(programs);
+        }
+        return program;
+    }
+
+    @Override
+    public void apply(int[][] image) {
+        float[] program = RowKernels.isVectorized() ? program() : null;
+        if (program != null) {
+            ToneExpression.apply(program, image);
+            return;
+        }
+        if (filters.size() == 1) {
+            filters.getFirst().applyTable(image, values.getFirst());
+            return;
+        }
+        int[] table = table();
+        for (int[] row : image)
+            for (int x = 0; x < row.length; x++) {
+                int t = row[x];
+                row[x] = (t & ~0xFF) == 0 ? table[t] : transform(t);
+            }
+    }
+}
@@ -0,0 +1,336 @@
+package pt.iscte.greyditor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compact storage of an image with one byte per pixel, in one array per row.
+ * Rows with tones outside [0, 255] are also kept with all their tones as integers, so that any matrix
+ * may be stored and obtained back unchanged, including matrices with rows of different lengths or null rows.
+ * <p>
+ * Copies share their rows with the original (copy-on-write): a row is only duplicated
+ * when it is first modified in one of the buffers that share it.
+ */
+final class GreyBuffer {
+    static final int NULL_ROW = -1;
+
+    final int width;
+    final int height;
+    private final byte[][] rows;
+    private final BitSet owned;
+    /**
+     * All the tones of the rows with tones outside [0, 255] (null for the other rows), or null if there are none
+     */
+    private int[][] wide;
+    private int[] lengths;
+
+    GreyBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rows = new byte[height][width];
+        this.owned = new BitSet(height);
+        owned.set(0, height);
+    }
+
+    private GreyBuffer(int width, byte[][] rows) {
+        this.width = width;
+        this.height = rows.length;
+        this.rows = rows;
+        this.owned = new BitSet(height);
+        owned.set(0, height);
+    }
+
+    /**
+     * Creates a buffer that takes over rows of tones in [0, 255], all with the given length
+     */
+    static GreyBuffer wrap(int width, byte[][] rows) {
+        return new GreyBuffer(width, rows);
+    }
+
+    private GreyBuffer(GreyBuffer other) {
+        width = other.width;
+        height = other.height;
+        rows = other.rows.clone();
+        owned = new BitSet(height);
+        other.owned.clear();
+        wide = other.wide == null ? null : other.wide.clone();
+        lengths = other.lengths;
+    }
+
+    static GreyBuffer of(int[][] matrix) {
+        int width = 0;
+        boolean ragged = false;
+        for (int[] row : matrix) {
+            int length = row == null ? NULL_ROW : row.length;
+            ragged |= length != (matrix[0] == null ? NULL_ROW : matrix[0].length);
+            width = Math.max(width, length);
+        }
+        GreyBuffer buffer = new GreyBuffer(width, matrix.length);
+        if (ragged) {
+            buffer.lengths = new int[matrix.length];
+            for (int y = 0; y < matrix.length; y++)
+                buffer.lengths[y] = matrix[y] == null ? NULL_ROW : matrix[y].length;
+        }
+        for (int y = 0; y < matrix.length; y++)
+            if (matrix[y] != null)
+                buffer.setRow(y, matrix[y]);
+        return buffer;
+    }
+
+    /**
+     * Returns a copy that shares the rows of this buffer until they are modified
+     */
+    synchronized GreyBuffer copy() {
+        return new GreyBuffer(this);
+    }
+
+    /**
+     * Length of a row, which is the width unless the buffer was created from a ragged matrix
+     * @return the length, or NULL_ROW
+     */
+    int rowLength(int y) {
+        return lengths == null ? width : lengths[y];
+    }
+
+    /**
+     * Returns all the tones of a row with tones outside [0, 255] (not to be modified)
+     * @return the tones, or null if the row has only tones in [0, 255]
+     */
+    int[] outlierRow(int y) {
+        return wide == null ? null : wide[y];
+    }
+
+    /**
+     * Returns the tones of a row in [0, 255], with the outliers clamped (not to be modified)
+     */
+    byte[] row(int y) {
+        return rows[y];
+    }
+
+    int get(int x, int y) {
+        int[] tones = outlierRow(y);
+        return tones != null ? tones[x] : rows[y][x] & 0xFF;
+    }
+
+    void set(int x, int y, int tone) {
+        byte[] row = writableRow(y);
+        row[x] = clamp(tone);
+        int[] tones = outlierRow(y);
+        if (tones == null && (tone & ~0xFF) != 0)
+            tones = wideRow(y);
+        if (tones != null)
+            tones[x] = tone;
+    }
+
+    private static byte clamp(int tone) {
+        return (byte) ((tone & ~0xFF) == 0 ? tone : tone < 0 ? 0 : 255);
+    }
+
+    private synchronized byte[] writableRow(int y) {
+        if (!owned.get(y)) {
+            rows[y] = rows[y].clone();
+            if (wide != null && wide[y] != null)
+                wide[y] = wide[y].clone();
+            owned.set(y);
+        }
+        return rows[y];
+    }
+
+    /**
+     * Returns the integer tones of a row, which are created from its bytes if the row had none
+     */
+    private synchronized int[] wideRow(int y) {
+        byte[] row = writableRow(y);
+        if (wide == null)
+            wide = new int[height][];
+        if (wide[y] == null) {
+            int[] tones = new int[width];
+            for (int x = 0; x < width; x++)
+                tones[x] = row[x] & 0xFF;
+            wide[y] = tones;
+        }
+        return wide[y];
+    }
+
+    private void setRow(int y, int[] row) {
+        byte[] tones = writableRow(y);
+        boolean outside = false;
+        for (int x = 0; x < row.length; x++) {
+            int tone = row[x];
+            if ((tone & ~0xFF) == 0)
+                tones[x] = (byte) tone;
+            else {
+                tones[x] = clamp(tone);
+                outside = true;
+            }
+        }
+        if (outside)
+            System.arraycopy(row, 0, wideRow(y), 0, row.length);
+    }
+
+    /**
+     * Copies a row of tones
+     * @param y row index
+     * @param row destination, with at least rowLength(y) elements
+     */
+    void getRow(int y, int[] row) {
+        int length = rowLength(y);
+        int[] wideTones = outlierRow(y);
+        if (wideTones != null) {
+            System.arraycopy(wideTones, 0, row, 0, length);
+            return;
+        }
+        byte[] tones = rows[y];
+        for (int x = 0; x < length; x++)
+            row[x] = tones[x] & 0xFF;
+    }
+
+    /**
+     * Returns a new matrix with the tones of the buffer
+     */
+    int[][] toMatrix() {
+        int[][] matrix = new int[height][];
+        for (int y = 0; y < height; y++) {
+            int length = rowLength(y);
+            if (length != NULL_ROW) {
+                matrix[y] = new int[length];
+                getRow(y, matrix[y]);
+            }
+        }
+        return matrix;
+    }
+
+    boolean isRagged() {
+        return lengths != null;
+    }
+
+    /**
+     * Returns the bounds of the pixels that differ between two buffers with the same dimension
+     * @return the bounds, or null if the buffers are equal
+     */
+    Selection difference(GreyBuffer other) {
+        int x0 = width, y0 = height, x1 = -1, y1 = -1;
+        for (int y = 0; y < height; y++) {
+            int first;
+            int last;
+            if (outlierRow(y) == null && other.outlierRow(y) == null) {
+                byte[] a = rows[y];
+                byte[] b = other.rows[y];
+                if (a == b || (first = Arrays.mismatch(a, b)) == -1)
+                    continue;
+                last = width - 1;
+                while (a[last] == b[last])
+                    last--;
+            } else {
+                first = 0;
+                while (first < width && get(first, y) == other.get(first, y))
+                    first++;
+                if (first == width)
+                    continue;
+                last = width - 1;
+                while (get(last, y) == other.get(last, y))
+                    last--;
+            }
+            x0 = Math.min(x0, first);
+            x1 = Math.max(x1, last);
+            y0 = Math.min(y0, y);
+            y1 = y;
+        }
+        return x1 == -1 ? null : new Selection(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    /**
+     * Returns a copy of a region
+     */
+    GreyBuffer region(Selection r) {
+        GreyBuffer region = new GreyBuffer(r.width(), r.height());
+        for (int y = 0; y < r.height(); y++) {
+            System.arraycopy(rows[r.y() + y], r.x(), region.rows[y], 0, r.width());
+            int[] tones = outlierRow(r.y() + y);
+            if (tones != null)
+                System.arraycopy(tones, r.x(), region.wideRow(y), 0, r.width());
+        }
+        return region;
+    }
+
+    /**
+     * Copies the pixels of a region into this buffer
+     */
+    void paste(GreyBuffer region, int x, int y) {
+        for (int ry = 0; ry < region.height; ry++) {
+            System.arraycopy(region.rows[ry], 0, writableRow(y + ry), x, region.width);
+            int[] tones = region.outlierRow(ry);
+            if (tones != null)
+                System.arraycopy(tones, 0, wideRow(y + ry), x, region.width);
+            else if (outlierRow(y + ry) != null)
+                for (int rx = 0; rx < region.width; rx++)
+                    wide[y + ry][x + rx] = region.rows[ry][rx] & 0xFF;
+        }
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(width * height + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeBoolean(lengths != null);
+            if (lengths != null)
+                for (int length : lengths)
+                    out.writeInt(length);
+            for (byte[] row : rows)
+                out.write(row);
+            for (int y = 0; y < height; y++) {
+                int[] tones = outlierRow(y);
+                if (tones != null) {
+                    out.writeInt(y);
+                    for (int tone : tones)
+                        out.writeInt(tone);
+                }
+            }
+            out.writeInt(-1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static GreyBuffer fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            GreyBuffer buffer = new GreyBuffer(in.readInt(), in.readInt());
+            if (in.readBoolean()) {
+                buffer.lengths = new int[buffer.height];
+                for (int y = 0; y < buffer.height; y++)
+                    buffer.lengths[y] = in.readInt();
+            }
+            for (byte[] row : buffer.rows)
+                in.readFully(row);
+            int y;
+            while ((y = in.readInt()) != -1) {
+                int[] tones = buffer.wideRow(y);
+                for (int x = 0; x < buffer.width; x++)
+                    tones[x] = in.readInt();
+            }
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    long sizeInBytes() {
+        return 32L + (16L + width) * height + (wide == null ? 0 : 16L * height + wideSize()) + (lengths == null ? 0 : 4L * height);
+    }
+
+    private long wideSize() {
+        long size = 0;
+        for (int[] tones : wide)
+            if (tones != null)
+                size += 16L + 4L * width;
+        return size;
+    }
+}
@@ -1,25 +1,56 @@
 package pt.iscte.greyditor;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.Dimension;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
 
 public class Greyditor {
     private static final ArrayList<JFrame> ALL_WINDOWS = new ArrayList<>();
+    private static final int PREVIEW_SIZE = 256;
+    /**
+     * Estimate of the memory taken by each pixel of an image that is edited in memory
+     * (the image, the matrix of the effects, the rendered frame and its mipmap, the history)
+     */
+    private static final int BYTES_PER_PIXEL = 32;
 
     private final List<EditorWindow.EffectMinMax> effects = new ArrayList<>();
     private final List<EditorWindow.OperationTool> operations = new ArrayList<>();
 
     private String name;
+    private long cacheBytes = 64L * 1024 * 1024;
+    private boolean parallel;
+    private long historyBytes = 32L * 1024 * 1024;
+    private boolean histogram;
+    private boolean metricsOverlay;
+    private boolean progressive;
+    private boolean previewEditable;
+    private final PngWriter pngWriter = new PngWriter();
+    private boolean pgmAscii;
+    private boolean pgmSixteenBits;
 
     public static Editor create(int width, int height) {
         return new Greyditor("Greyditor").open(width, height);
@@ -37,20 +68,194 @@ public class Greyditor {
         this.name = name;
     }
 
+    /**
+     * Sets the memory available for caching the intermediate results of the effects of each window
+     * @param megabytes non-negative size in megabytes (zero disables caching)
+     */
+    public void setCacheSize(int megabytes) {
+        if (megabytes < 0)
+            throw new IllegalArgumentException("cache size cannot be negative: " + megabytes);
+        cacheBytes = megabytes * 1024L * 1024L;
+    }
+
+    long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Sets the memory available for keeping decoded image files, shared by all the windows,
+     * so that opening a file again does not decode it (unless the file was modified)
+     * @param megabytes non-negative size in megabytes (zero disables caching, by default 128)
+     */
+    public static void setDecodeCacheSize(int megabytes) {
+        if (megabytes < 0)
+            throw new IllegalArgumentException("cache size cannot be negative: " + megabytes);
+        DecodeCache.setMaxBytes(megabytes * 1024L * 1024L);
+    }
+
+    /**
+     * Sets the memory available for the undo history of each window, beyond which
+     * the oldest steps are kept in a temporary file
+     * @param megabytes non-negative size in megabytes
+     */
+    public void setHistorySize(int megabytes) {
+        if (megabytes < 0)
+            throw new IllegalArgumentException("history size cannot be negative: " + megabytes);
+        historyBytes = megabytes * 1024L * 1024L;
+    }
+
+    long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * Enables the parallel execution of filters and row-parallel effects,
+     * which are applied to bands of rows on the common fork-join pool
+     * @param parallel true to enable parallel execution (disabled by default)
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Shows a live histogram of the image at the bottom of each window
+     * @param visible true to show the histogram (hidden by default)
+     */
+    public void setHistogramVisible(boolean visible) {
+        histogram = visible;
+    }
+
+    boolean isHistogramVisible() {
+        return histogram;
+    }
+
+    /**
+     * Shows the time of the last frame and the frame rate over the image of each window
+     * (see {@link Editor#getMetrics()} for the measurements of each effect)
+     * @param visible true to show the overlay (hidden by default)
+     */
+    public void setMetricsOverlay(boolean visible) {
+        metricsOverlay = visible;
+    }
+
+    boolean isMetricsOverlay() {
+        return metricsOverlay;
+    }
+
+    /**
+     * Opens image files in two steps: a window with a low-resolution preview is shown at once,
+     * while the full image is decoded in the background and then replaces the preview.
+     * Effects are applied to the preview as usual, and to the full image when it replaces the preview.
+     * Files that were already decoded (see {@link #setDecodeCacheSize(int)}) are opened at once.
+     * @param progressive true to open files progressively (disabled by default)
+     * @param editPreview true to perform operations on the preview right away and then again on the full image,
+     *                    with the same selection and input; false to defer them until the full image is shown.
+     *                    The default operations to zoom and load are performed once, and saving is only possible
+     *                    once the full image is shown.
+     */
+    public void setProgressiveOpen(boolean progressive, boolean editPreview) {
+        this.progressive = progressive;
+        this.previewEditable = editPreview;
+    }
+
+    /**
+     * Sets the compression of the PNG files saved by the save operation (and by {@link BatchRunner})
+     * @param level deflate level, from 0 (fastest) to 9 (smallest files), or -1 for the default
+     * @param filter filter of the rows (by default, adaptive)
+     */
+    public void setPngCompression(int level, PngWriter.Filter filter) {
+        pngWriter.setCompressionLevel(level);
+        pngWriter.setFilter(filter);
+    }
+
+    /**
+     * Sets the format of the PGM files saved by the save operation (by default, binary with 8-bit samples)
+     * @param ascii true for ASCII files (P2), false for binary files (P5)
+     * @param sixteenBits true for 16-bit samples, false for 8-bit samples
+     */
+    public void setPgmFormat(boolean ascii, boolean sixteenBits) {
+        this.pgmAscii = ascii;
+        this.pgmSixteenBits = sixteenBits;
+    }
+
+    PngWriter getPngWriter() {
+        return pngWriter;
+    }
+
+    /**
+     * Largest number of pixels of an image that is edited in memory, which depends on the maximum memory
+     * of the virtual machine (or is given by the property greyditor.maxPixels). Larger image files are
+     * opened as tiled images, of which a region at a time is edited.
+     */
+    static long maxImagePixels() {
+        return Long.getLong("greyditor.maxPixels", Runtime.getRuntime().maxMemory() / BYTES_PER_PIXEL);
+    }
+
+    List<EditorWindow.EffectMinMax> getEffects() {
+        return effects;
+    }
+
+    List<EditorWindow.OperationTool> getOperations() {
+        return operations;
+    }
+
     public void addFilter(String text, FilterSimple filter) {
-        effects.add(new EditorWindow.EffectMinMax(text, new FilterAdapter(filter), 0, 0));
+        effects.add(new EditorWindow.EffectMinMax(text, new FilterAdapter(filter), 0, 0, EffectTraits.FILTER));
     }
 
     public void addFilter(String text, FilterValue filter, int min, int max) {
-        effects.add(new EditorWindow.EffectMinMax(text, new FilterValueAdapter(filter), min, max));
+        effects.add(new EditorWindow.EffectMinMax(text, new FilterValueAdapter(filter), min, max, EffectTraits.FILTER));
+    }
+
+    /**
+     * Adds a filter with a value for which it leaves the tones unchanged, so that it is skipped at that value
+     */
+    public void addFilter(String text, FilterValue filter, int min, int max, int identity) {
+        effects.add(new EditorWindow.EffectMinMax(text, new FilterValueAdapter(filter), min, max, EffectTraits.FILTER.identity(identity)));
     }
 
     public void addEffect(String text, EffectSimple filter) {
-        effects.add(new EditorWindow.EffectMinMax(text, filter, 0, 0));
+        effects.add(new EditorWindow.EffectMinMax(text, filter, 0, 0, EffectTraits.EFFECT));
     }
 
     public void addEffect(String text, EffectValue filter, int min, int max) {
-        effects.add(new EditorWindow.EffectMinMax(text, filter, min, max));
+        effects.add(new EditorWindow.EffectMinMax(text, filter, min, max, EffectTraits.EFFECT));
+    }
+
+    /**
+     * Adds an effect with a description of its behavior, used to apply it more efficiently (see {@link EffectTraits})
+     */
+    public void addEffect(String text, EffectSimple filter, EffectTraits traits) {
+        effects.add(new EditorWindow.EffectMinMax(text, filter, 0, 0, traits));
+    }
+
+    /**
+     * Adds an effect with a value and a description of its behavior, used to apply it more efficiently (see {@link EffectTraits})
+     */
+    public void addEffect(String text, EffectValue filter, int min, int max, EffectTraits traits) {
+        effects.add(new EditorWindow.EffectMinMax(text, filter, min, max, traits));
+    }
+
+    /**
+     * Adds an effect that may be applied in parallel to bands of rows (see {@link #setParallel(boolean)}).
+     * Each band is given to the effect as a matrix with a subset of the image rows,
+     * so the effect must transform every row independently of the others and of its position.
+     */
+    public void addParallelEffect(String text, EffectSimple filter) {
+        addEffect(text, filter, EffectTraits.rowwise().threadSafe());
+    }
+
+    /**
+     * Adds an effect with a value that may be applied in parallel to bands of rows (see {@link #setParallel(boolean)}).
+     * Each band is given to the effect as a matrix with a subset of the image rows,
+     * so the effect must transform every row independently of the others and of its position.
+     */
+    public void addParallelEffect(String text, EffectValue filter, int min, int max) {
+        addEffect(text, filter, min, max, EffectTraits.rowwise().threadSafe());
     }
 
     public void addOperation(String text, OperationSimple operation) {
@@ -62,55 +267,84 @@ public class Greyditor {
     }
 
     public void addSaveOperation(String text) {
-        addOperation(text, this::save);
+        operations.add(new EditorWindow.OperationTool(text, (OperationEditor) this::save, EditorWindow.Role.SAVE));
     }
 
     public void addLoadOperation(String text) {
-        addOperation(text, this::load);
+        operations.add(new EditorWindow.OperationTool(text, (OperationEditor) this::load, EditorWindow.Role.VIEW));
+    }
+
+    public void addUndoOperation(String text) {
+        addOperation(text, this::undo);
+    }
+
+    public void addRedoOperation(String text) {
+        addOperation(text, this::redo);
     }
 
     public void addZoomInOperation(String text) {
-        addOperation(text, this::zoomIn);
+        operations.add(new EditorWindow.OperationTool(text, (OperationEditor) this::zoomIn, EditorWindow.Role.VIEW));
     }
 
     public void addZoomOutOperation(String text) {
-        addOperation(text, this::zoomOut);
+        operations.add(new EditorWindow.OperationTool(text, (OperationEditor) this::zoomOut, EditorWindow.Role.VIEW));
     }
 
-    private class FilterAdapter implements EffectSimple {
-        FilterSimple f;
+    static class FilterAdapter extends CompiledFilter implements EffectSimple {
+        final FilterSimple f;
 
         FilterAdapter(FilterSimple f) {
             this.f = f;
         }
 
+        @Override
+        int transform(int tone, int value) {
+            return f.transform(tone);
+        }
+
+        @Override
+        ToneExpression expression() {
+            return f instanceof ToneExpression e ? e : null;
+        }
+
         @Override
         public void apply(int[][] image) {
-            for (int y = 0; y < image.length; y++)
-                for (int x = 0; x < image[y].length; x++)
-                    image[y][x] = f.transform(image[y][x]);
+            if (f instanceof ToneExpression e && RowKernels.isVectorized())
+                ToneExpression.apply(e.bind(0), image);
+            else
+                applyTable(image, 0);
         }
     }
 
-    private class FilterValueAdapter implements EffectValue {
-        FilterValue f;
+    static class FilterValueAdapter extends CompiledFilter implements EffectValue {
+        final FilterValue f;
 
         FilterValueAdapter(FilterValue f) {
             this.f = f;
         }
 
+        @Override
+        int transform(int tone, int value) {
+            return f.transform(tone, value);
+        }
+
+        @Override
+        ToneExpression expression() {
+            return f instanceof ToneExpression e ? e : null;
+        }
+
         @Override
         public void apply(int[][] image, int value) {
-            for (int y = 0; y < image.length; y++)
-                for (int x = 0; x < image[y].length; x++)
-                    image[y][x] = f.transform(image[y][x], value);
+            if (f instanceof ToneExpression e && RowKernels.isVectorized())
+                ToneExpression.apply(e.bind(value), image);
+            else
+                applyTable(image, value);
         }
     }
 
 
     public Editor open() {
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle("Open image");
+        JFileChooser fileChooser = openChooser();
         int result = fileChooser.showOpenDialog(null);
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
@@ -121,24 +355,46 @@ public class Greyditor {
 
     public Editor open(int[][] image) {
         EditorWindow e = new EditorWindow(this, name, effects, operations);
-        JFrame frame = e.newWindow(image);
+        register(e, e.newWindow(image));
+        return e;
+    }
+
+    private static void register(EditorWindow e, JFrame frame) {
         ALL_WINDOWS.add(frame);
         frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         frame.addWindowListener(new WindowAdapter() {
             @Override
-            public void windowClosing(WindowEvent e) {
+            public void windowClosing(WindowEvent ev) {
                 ALL_WINDOWS.remove(frame);
                 if (ALL_WINDOWS.isEmpty()) {
                     System.exit(0);
                 }
                 frame.setVisible(false);
+                e.close();
             }
         });
-        return e;
     }
 
+    /**
+     * Opens an image file, as a tiled image if it is too large to be edited in memory (see {@link #maxImagePixels()})
+     */
     public Editor open(String fileName) {
-        int[][] image = loadImage(new File(fileName));
+        File file = new File(fileName);
+        boolean pgm = Pgm.isPgm(file.toPath());
+        Dimension size;
+        try {
+            size = pgm ? Pgm.readSize(file.toPath()) : readSize(file);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "File not found: " + file.getAbsolutePath());
+            return null;
+        }
+        if (!isValidSize(size.width, size.height))
+            return null;
+        if ((long) size.width * size.height > maxImagePixels())
+            return openTiled(file);
+        if (progressive && !pgm && Math.max(size.width, size.height) > PREVIEW_SIZE && !DecodeCache.contains(file))
+            return openProgressive(file, size);
+        int[][] image = loadImage(file);
         if(image != null)
             return open(image);
         else
@@ -154,26 +410,33 @@ public class Greyditor {
             return open(new int[height][width]);
     }
 
+    /**
+     * File chooser for opening the image formats of ImageIO and PGM files
+     */
+    private static JFileChooser openChooser() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Open image");
+        List<String> suffixes = new ArrayList<>(List.of(ImageIO.getReaderFileSuffixes()));
+        suffixes.add("pgm");
+        suffixes.add("pnm");
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Images", suffixes.toArray(new String[0])));
+        return fileChooser;
+    }
+
     private int[][] save(int[][] image, Editor editor) {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Save image");
         fileChooser.setCurrentDirectory(new File(System.getProperty("user.dir")));
-        FileFilter filter = new FileFilter() {
-            @Override
-            public boolean accept(File file) {
-                return file.isDirectory() || file.getName().toLowerCase().endsWith(".png");
-            }
-
-            @Override
-            public String getDescription() {
-                return "PNG files (*.png)";
-            }
-        };
-        fileChooser.setFileFilter(filter);
+        FileFilter png = new FileNameExtensionFilter("PNG files (*.png)", "png");
+        FileFilter pgm = new FileNameExtensionFilter("PGM files (*.pgm)", "pgm", "pnm");
+        fileChooser.addChoosableFileFilter(pgm);
+        fileChooser.setFileFilter(png);
         int result = fileChooser.showSaveDialog(null);
 
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
+            if (fileChooser.getFileFilter() == pgm && !selectedFile.getName().contains("."))
+                selectedFile = new File(selectedFile.getPath() + ".pgm");
 
             int overwriteOption = selectedFile.exists() ? JOptionPane.showConfirmDialog(
                     null,
@@ -183,53 +446,217 @@ public class Greyditor {
             ) : JOptionPane.YES_OPTION;
 
             if (overwriteOption == JOptionPane.YES_OPTION) {
+                EditorWindow window = (EditorWindow) editor;
+                RowSource output;
                 try {
-                    ImageIO.write(EditorWindow.matrixToImage(editor.getImage(), 1), "PNG",
-                            selectedFile);
-                } catch (IOException e) {
-                    editor.message("Error saving image");
+                    output = window.getOutputRows();
+                } catch (IOException | IllegalArgumentException e) {
+                    editor.message("Error saving image: " + e.getMessage());
+                    return null;
                 }
+                window.whileSaving(saveInBackground(output, selectedFile, editor,
+                        Pgm.hasPgmExtension(selectedFile.getName()) ?
+                                (img, path, progress, cancelled) -> Pgm.write(img, path, pgmAscii, pgmSixteenBits, progress, cancelled) :
+                                pngWriter::write));
             }
         }
         return null;
     }
 
+    private interface ImageWriter {
+        void write(RowSource image, Path file, DoubleConsumer progress, BooleanSupplier cancelled) throws IOException;
+    }
+
+    /**
+     * Writes an image on the shared worker threads, showing the progress in a dialog that allows cancelling
+     * @return the completion of the writing
+     */
+    private CompletableFuture<?> saveInBackground(RowSource image, File file, Editor editor, ImageWriter writer) {
+        ProgressMonitor monitor = new ProgressMonitor(((EditorWindow) editor).frame, "Saving " + file.getName(), null, 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                writer.write(image, file.toPath(), progress -> SwingUtilities.invokeLater(() -> {
+                    monitor.setProgress((int) (progress * 100));
+                    cancelled.set(monitor.isCanceled());
+                }), cancelled::get);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Workers.io()).whenComplete((_, error) -> SwingUtilities.invokeLater(() -> {
+            monitor.close();
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause != null && !(cause instanceof CancellationException)) {
+                System.err.println("Error saving image: " + cause.getMessage());
+                editor.message("Error saving image");
+            }
+        }));
+    }
+
 
     private int[][] loadImage(File inputFile) {
         try {
-            BufferedImage image = ImageIO.read(inputFile);
-            if (image.getHeight() > 1000 || image.getWidth() > 1000)
-                JOptionPane.showMessageDialog(null, "Too large image (max: 1000x1000)");
-            else if (image.getHeight() < 1 || image.getWidth() < 1)
-                JOptionPane.showMessageDialog(null, "An image must have a dimension of at least 1x1");
-            else
-                return getImageDataGray(image);
+            GreyBuffer image = DecodeCache.read(inputFile);
+            if (isValidSize(image.width, image.height))
+                return image.toMatrix();
         } catch (IOException e) {
             JOptionPane.showMessageDialog(null, "File not found: " + inputFile.getAbsolutePath());
         }
         return null;
     }
 
-    private static int[][] getImageDataGray(BufferedImage image) {
+    private static boolean isValidSize(int width, int height) {
+        if (height < 1 || width < 1) {
+            JOptionPane.showMessageDialog(null, "An image must have a dimension of at least 1x1");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Opens a window with a region of an image file that is too large to be edited in memory,
+     * which is first read a row at a time into a tiled image
+     */
+    private Editor openTiled(File inputFile) {
+        TiledImage image;
+        try {
+            image = TiledImage.read(inputFile);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading image: " + e.getMessage());
+            JOptionPane.showMessageDialog(null, "Error reading image: " + inputFile.getAbsolutePath());
+            return null;
+        }
+        EditorWindow e = new EditorWindow(this, name, effects, operations);
+        register(e, e.newWindow(image));
+        return e;
+    }
+
+    /**
+     * Opens a window with a subsampled preview of an image file, zoomed to the size of the image,
+     * which is replaced by the full image once it is decoded on a background thread
+     */
+    private Editor openProgressive(File inputFile, Dimension size) {
+        int[][] preview;
+        int subsampling = (Math.max(size.width, size.height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE;
+        try {
+            preview = getImageDataGray(readImage(inputFile, subsampling));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "File not found: " + inputFile.getAbsolutePath());
+            return null;
+        }
+        EditorWindow e = new EditorWindow(this, name, effects, operations);
+        register(e, e.newWindow(preview, size, subsampling, previewEditable));
+        DecodeCache.readAsync(inputFile).whenComplete((full, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null)
+                JOptionPane.showMessageDialog(null, "Error reading image: " + inputFile.getAbsolutePath());
+            e.endPreview(error == null ? full : null);
+        }));
+        return e;
+    }
+
+    /**
+     * Reads an image file, optionally subsampled (for instance, for previews)
+     * @param inputFile image file in a format supported by ImageIO
+     * @param subsampling reads one of every subsampling rows and columns (1 reads the full image)
+     * @return the decoded image
+     * @throws IOException if the file cannot be read or its format is not supported
+     */
+    static BufferedImage readImage(File inputFile, int subsampling) throws IOException {
+        return read(inputFile, reader -> {
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (subsampling > 1)
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        });
+    }
+
+    /**
+     * Reads the dimension of an image file, without decoding its pixels
+     * @throws IOException if the file cannot be read or its format is not supported
+     */
+    static Dimension readSize(File inputFile) throws IOException {
+        return read(inputFile, reader -> new Dimension(reader.getWidth(0), reader.getHeight(0)));
+    }
+
+    private interface ReaderTask<T> {
+        T run(ImageReader reader) throws IOException;
+    }
+
+    private static <T> T read(File inputFile, ReaderTask<T> task) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(inputFile)) {
+            if (in == null)
+                throw new IOException("File not found: " + inputFile.getAbsolutePath());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                throw new IOException("Unsupported image format: " + inputFile.getAbsolutePath());
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return task.run(reader);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Converts an image to gray tones, reading its raster a row at a time.
+     * Single-band 8 and 16-bit images are read as they are, while color images are converted
+     * with integer luma weights (0.299 R + 0.587 G + 0.114 B).
+     */
+    static int[][] getImageDataGray(BufferedImage image) {
         int width = image.getWidth();
         int height = image.getHeight();
         int[][] imageData = new int[height][width];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                int red = (rgb >> 16) & 0xFF;
-                int green = (rgb >> 8) & 0xFF;
-                int blue = rgb & 0xFF;
-                int gray = (int) (0.299 * red + 0.587 * green + 0.114 * blue);
-                imageData[y][x] = gray;
+        WritableRaster raster = image.getRaster();
+        int bands = raster.getNumBands();
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            for (int y = 0; y < height; y++)
+                raster.getSamples(0, y, width, 1, 0, imageData[y]);
+        } else if (image.getType() == BufferedImage.TYPE_USHORT_GRAY) {
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, imageData[y]);
+                for (int x = 0; x < width; x++)
+                    imageData[y][x] >>>= 8;
+            }
+        } else if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                raster.getDataElements(0, y, width, 1, row);
+                lumaRow(row, imageData[y]);
+            }
+        } else if ((image.getType() == BufferedImage.TYPE_3BYTE_BGR || image.getType() == BufferedImage.TYPE_4BYTE_ABGR) && bands >= 3) {
+            int[] row = new int[width * bands];
+            for (int y = 0; y < height; y++) {
+                raster.getPixels(0, y, width, 1, row);
+                int[] gray = imageData[y];
+                for (int x = 0, i = 0; x < width; x++, i += bands)
+                    gray[x] = luma(row[i], row[i + 1], row[i + 2]);
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                lumaRow(row, imageData[y]);
             }
         }
         return imageData;
     }
 
+    private static void lumaRow(int[] rgb, int[] gray) {
+        for (int x = 0; x < gray.length; x++) {
+            int p = rgb[x];
+            gray[x] = luma((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF);
+        }
+    }
+
+    static int luma(int red, int green, int blue) {
+        return (19595 * red + 38470 * green + 7471 * blue) >>> 16;
+    }
+
     private int[][] load(int[][] image, Editor editor) {
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle("Open image");
+        JFileChooser fileChooser = openChooser();
         int result = fileChooser.showOpenDialog(null);
 
         if (result == JFileChooser.APPROVE_OPTION) {
@@ -241,14 +668,32 @@ public class Greyditor {
         return null;
     }
 
+    private int[][] undo(int[][] image, Editor editor) {
+        ((EditorWindow) editor).undo();
+        return null;
+    }
+
+    private int[][] redo(int[][] image, Editor editor) {
+        ((EditorWindow) editor).redo();
+        return null;
+    }
+
+    /**
+     * Zooms in by one factor, or doubles the scale while zoomed out
+     */
     private int[][] zoomIn(int[][] image, Editor editor) {
-        editor.zoom(editor.getZoomFactor() + 1);
+        double zoom = editor.getZoom();
+        editor.zoom(zoom < 1 ? Math.min(1, zoom * 2) : Math.floor(zoom) + 1);
         ((EditorWindow) editor).frame.pack();
         return null;
     }
 
+    /**
+     * Zooms out by one factor, or halves the scale below the factor 1
+     */
     private int[][] zoomOut(int[][] image, Editor editor) {
-        editor.zoom(editor.getZoomFactor() - 1);
+        double zoom = editor.getZoom();
+        editor.zoom(zoom <= 1 ? zoom / 2 : Math.ceil(zoom) - 1);
         ((EditorWindow) editor).frame.pack();
         return null;
     }
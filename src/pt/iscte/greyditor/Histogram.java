@@ -0,0 +1,116 @@
+package pt.iscte.greyditor;
+
+/**
+ * Number of pixels of each tone of an image, in the range [0, 255].
+ * Tones outside the range are not counted.
+ * All queries take constant time (at most 256 steps).
+ */
+public final class Histogram {
+    private final int[] counts;
+    private final long total;
+
+    Histogram(int[] counts) {
+        this.counts = counts.clone();
+        long total = 0;
+        for (int c : counts)
+            total += c;
+        this.total = total;
+    }
+
+    /**
+     * Counts the tones of a buffer
+     * @return 256 counters
+     */
+    static int[] count(GreyBuffer buffer) {
+        int[] counts = new int[256];
+        for (int y = 0; y < buffer.height; y++)
+            count(buffer, new Selection(0, y, Math.max(0, buffer.rowLength(y)), 1), counts, 1);
+        return counts;
+    }
+
+    /**
+     * Adds (or subtracts, with sign -1) the tones of a region of a buffer to the counters
+     */
+    static void count(GreyBuffer buffer, Selection region, int[] counts, int sign) {
+        for (int y = region.y(); y < region.y() + region.height(); y++) {
+            byte[] row = buffer.row(y);
+            int[] outliers = buffer.outlierRow(y);
+            if (outliers != null)
+                for (int x = region.x(); x < region.x() + region.width(); x++) {
+                    int tone = outliers[x];
+                    if ((tone & ~0xFF) == 0)
+                        counts[tone] += sign;
+                }
+            else
+                for (int x = region.x(); x < region.x() + region.width(); x++)
+                    counts[row[x] & 0xFF] += sign;
+        }
+    }
+
+    /**
+     * Number of pixels with a given tone
+     * @param tone an integer in the range [0, 255]
+     */
+    public int count(int tone) {
+        return counts[tone];
+    }
+
+    /**
+     * Number of pixels counted
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Darkest tone of the image
+     * @return the tone, or -1 if there are no pixels
+     */
+    public int min() {
+        for (int t = 0; t < 256; t++)
+            if (counts[t] != 0)
+                return t;
+        return -1;
+    }
+
+    /**
+     * Brightest tone of the image
+     * @return the tone, or -1 if there are no pixels
+     */
+    public int max() {
+        for (int t = 255; t >= 0; t--)
+            if (counts[t] != 0)
+                return t;
+        return -1;
+    }
+
+    /**
+     * Average tone of the image
+     * @return the average, or NaN if there are no pixels
+     */
+    public double mean() {
+        long sum = 0;
+        for (int t = 0; t < 256; t++)
+            sum += (long) t * counts[t];
+        return total == 0 ? Double.NaN : (double) sum / total;
+    }
+
+    /**
+     * Smallest tone such that at least a given percentage of the pixels is not brighter
+     * (for instance, 50 gives the median)
+     * @param percent a number in the range [0, 100]
+     * @return the tone, or -1 if there are no pixels
+     */
+    public int percentile(double percent) {
+        if (percent < 0 || percent > 100)
+            throw new IllegalArgumentException("invalid percentage: " + percent);
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for (int t = 0; t < 256; t++) {
+            seen += counts[t];
+            if (seen >= rank && counts[t] != 0)
+                return t;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,249 @@
+package pt.iscte.greyditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Undo/redo history of the image of an editor window.
+ * Each step keeps only the rectangle of pixels that changed, before and after the change,
+ * compressed with deflate (steps that change the dimension of the image keep the whole image).
+ * When the compressed steps exceed the memory budget, the oldest ones are moved to a temporary file.
+ */
+class History {
+    private final long memoryBudget;
+    private final Deque<Step> undo = new ArrayDeque<>();
+    private final Deque<Step> redo = new ArrayDeque<>();
+    private long memory;
+    private RandomAccessFile spill;
+    private File spillFile;
+    private final TreeMap<Long, Integer> free = new TreeMap<>(); // unused extents of the spill file, by offset
+
+    /**
+     * Pixels of a step, either in memory or in the spill file
+     */
+    private static final class Blob {
+        byte[] data;
+        long offset;
+        int length;
+    }
+
+    private record Step(int x, int y, boolean replace, Blob before, Blob after) {
+    }
+
+    History(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Records a change of the image, discarding the steps that could be redone
+     */
+    void record(GreyBuffer before, GreyBuffer after) {
+        record(before, after, null);
+    }
+
+    /**
+     * Records a change of the image, discarding the steps that could be redone
+     * @param changed rectangle that contains every changed pixel, or null to compare the whole images
+     */
+    synchronized void record(GreyBuffer before, GreyBuffer after, Selection changed) {
+        Step step;
+        if (before.width == after.width && before.height == after.height && !before.isRagged() && !after.isRagged()) {
+            Selection bounds = changed != null ? changed : before.difference(after);
+            if (bounds == null)
+                return;
+            step = new Step(bounds.x(), bounds.y(), false, blob(before.region(bounds)), blob(after.region(bounds)));
+        } else
+            step = new Step(0, 0, true, blob(before), blob(after));
+        undo.push(step);
+        for (Step s : redo) {
+            memory -= size(s);
+            release(s.before);
+            release(s.after);
+        }
+        redo.clear();
+        memory += size(step);
+        spillOldest();
+    }
+
+    synchronized boolean canUndo() {
+        return !undo.isEmpty();
+    }
+
+    synchronized boolean canRedo() {
+        return !redo.isEmpty();
+    }
+
+    /**
+     * @param current the current image (not modified)
+     * @return the image before the last step, or null if there is nothing to undo
+     */
+    synchronized GreyBuffer undo(GreyBuffer current) {
+        if (undo.isEmpty())
+            return null;
+        Step step = undo.pop();
+        redo.push(step);
+        return apply(current, step, step.before);
+    }
+
+    /**
+     * @param current the current image (not modified)
+     * @return the image after the last undone step, or null if there is nothing to redo
+     */
+    synchronized GreyBuffer redo(GreyBuffer current) {
+        if (redo.isEmpty())
+            return null;
+        Step step = redo.pop();
+        undo.push(step);
+        return apply(current, step, step.after);
+    }
+
+    synchronized void close() {
+        undo.clear();
+        redo.clear();
+        memory = 0;
+        free.clear();
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // nothing to do, the file is deleted anyway
+            }
+            spillFile.delete();
+            spill = null;
+        }
+    }
+
+    private GreyBuffer apply(GreyBuffer current, Step step, Blob blob) {
+        GreyBuffer pixels = GreyBuffer.fromBytes(read(blob));
+        if (step.replace)
+            return pixels;
+        GreyBuffer result = current.copy();
+        result.paste(pixels, step.x, step.y);
+        return result;
+    }
+
+    private static Blob blob(GreyBuffer pixels) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(pixels.toBytes());
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        Blob blob = new Blob();
+        blob.data = out.toByteArray();
+        blob.length = blob.data.length;
+        return blob;
+    }
+
+    private byte[] read(Blob blob) {
+        byte[] compressed = blob.data;
+        if (compressed == null) {
+            compressed = new byte[blob.length];
+            try {
+                spill.seek(blob.offset);
+                spill.readFully(compressed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished())
+                out.write(buffer, 0, inflater.inflate(buffer));
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static long size(Step step) {
+        return (step.before.data == null ? 0 : step.before.length) + (step.after.data == null ? 0 : step.after.length);
+    }
+
+    private void spillOldest() {
+        var it = undo.descendingIterator();
+        while (memory > memoryBudget && it.hasNext()) {
+            Step step = it.next();
+            memory -= size(step);
+            spill(step.before);
+            spill(step.after);
+        }
+    }
+
+    private void spill(Blob blob) {
+        if (blob.data == null)
+            return;
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile("greyditor", ".history");
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+            blob.offset = allocate(blob.length);
+            spill.seek(blob.offset);
+            spill.write(blob.data);
+            blob.data = null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return offset of an unused extent of the spill file, reusing a freed one if it is large enough
+     */
+    private long allocate(int length) throws IOException {
+        for (Map.Entry<Long, Integer> e : free.entrySet())
+            if (e.getValue() >= length) {
+                free.remove(e.getKey());
+                if (e.getValue() > length)
+                    free.put(e.getKey() + length, e.getValue() - length);
+                return e.getKey();
+            }
+        return spill.length();
+    }
+
+    /**
+     * Gives back the extent of a spilled blob, merging it with its free neighbours
+     * and truncating the file when the extent is at its end
+     */
+    private void release(Blob blob) {
+        if (blob.data != null)
+            return;
+        long offset = blob.offset;
+        long length = blob.length;
+        Map.Entry<Long, Integer> previous = free.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            free.remove(previous.getKey());
+            offset = previous.getKey();
+            length += previous.getValue();
+        }
+        Integer next = free.remove(offset + length);
+        if (next != null)
+            length += next;
+        try {
+            if (offset + length == spill.length())
+                spill.setLength(offset);
+            else
+                free.put(offset, (int) length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
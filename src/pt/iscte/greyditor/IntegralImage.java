@@ -0,0 +1,153 @@
+package pt.iscte.greyditor;
+
+/**
+ * Summed-area table of an image, which gives the sum, mean and variance of the tones
+ * of any rectangular region in constant time, whatever its size.
+ * The table is a snapshot: later changes to the image are not reflected.
+ * Missing pixels of matrices with rows of different lengths count as zero.
+ */
+public final class IntegralImage {
+    private final int width;
+    private final int height;
+    private final long[] sums;
+    private final long[] squares;
+
+    /**
+     * Builds the table of an image, in time proportional to the number of pixels
+     * @param image matrix of tones
+     */
+    public IntegralImage(int[][] image) {
+        this(width(image), image.length);
+        for (int y = 0; y < height; y++)
+            addRow(y, image[y], image[y] == null ? 0 : image[y].length);
+    }
+
+    private IntegralImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        sums = new long[(width + 1) * (height + 1)];
+        squares = new long[(width + 1) * (height + 1)];
+    }
+
+    /**
+     * Builds the table of a buffer, without converting it to a matrix
+     */
+    static IntegralImage of(GreyBuffer buffer) {
+        IntegralImage table = new IntegralImage(buffer.width, buffer.height);
+        int[] row = new int[buffer.width];
+        for (int y = 0; y < buffer.height; y++) {
+            int length = Math.max(0, buffer.rowLength(y));
+            buffer.getRow(y, row);
+            table.addRow(y, row, length);
+        }
+        return table;
+    }
+
+    private static int width(int[][] image) {
+        int width = 0;
+        for (int[] row : image)
+            if (row != null)
+                width = Math.max(width, row.length);
+        return width;
+    }
+
+    private void addRow(int y, int[] row, int length) {
+        int stride = width + 1;
+        int above = y * stride;
+        int index = above + stride;
+        long sum = 0;
+        long square = 0;
+        for (int x = 0; x < width; x++) {
+            long tone = x < length ? row[x] : 0;
+            sum += tone;
+            square += tone * tone;
+            sums[index + x + 1] = sums[above + x + 1] + sum;
+            squares[index + x + 1] = squares[above + x + 1] + square;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Sum of the tones of a region, clipped to the image (a single point selection is a 1x1 region)
+     */
+    public long sum(Selection region) {
+        Selection r = clip(region);
+        return r == null ? 0 : sum(sums, r.x(), r.y(), r.x() + r.width(), r.y() + r.height());
+    }
+
+    /**
+     * Average tone of a region, clipped to the image
+     * @return the average, or NaN if the region is outside the image
+     */
+    public double mean(Selection region) {
+        Selection r = clip(region);
+        return r == null ? Double.NaN : (double) sum(region) / ((long) r.width() * r.height());
+    }
+
+    /**
+     * Variance of the tones of a region, clipped to the image
+     * @return the variance, or NaN if the region is outside the image
+     */
+    public double variance(Selection region) {
+        Selection r = clip(region);
+        if (r == null)
+            return Double.NaN;
+        double n = (double) r.width() * r.height();
+        double mean = sum(sums, r.x(), r.y(), r.x() + r.width(), r.y() + r.height()) / n;
+        double meanSquare = sum(squares, r.x(), r.y(), r.x() + r.width(), r.y() + r.height()) / n;
+        return Math.max(0, meanSquare - mean * mean);
+    }
+
+    /**
+     * Replaces every pixel by the average of the square of side 2 * radius + 1 around it
+     * (clipped to the image), in constant time per pixel regardless of the radius.
+     * May be used as an effect with a value:
+     * <pre>
+     * configuration.addEffect("Blur", IntegralImage::boxBlur, 0, 20);
+     * </pre>
+     * @param image matrix of tones, modified in place
+     * @param radius non-negative radius (zero leaves the image unchanged)
+     */
+    public static void boxBlur(int[][] image, int radius) {
+        if (radius <= 0)
+            return;
+        IntegralImage table = new IntegralImage(image);
+        for (int y = 0; y < image.length; y++) {
+            if (image[y] == null)
+                continue;
+            int y0 = Math.max(0, y - radius);
+            int y1 = Math.min(table.height, y + radius + 1);
+            for (int x = 0; x < image[y].length; x++) {
+                int x0 = Math.max(0, x - radius);
+                int x1 = Math.min(table.width, x + radius + 1);
+                long area = (long) (x1 - x0) * (y1 - y0);
+                image[y][x] = (int) ((table.sum(table.sums, x0, y0, x1, y1) + area / 2) / area);
+            }
+        }
+    }
+
+    /**
+     * Sum of a table over the pixels [x0, x1[ x [y0, y1[
+     */
+    private long sum(long[] table, int x0, int y0, int x1, int y1) {
+        int stride = width + 1;
+        return table[y1 * stride + x1] - table[y0 * stride + x1] - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    private Selection clip(Selection region) {
+        int w = region.isSingle() ? 1 : region.width();
+        int h = region.isSingle() ? 1 : region.height();
+        int x0 = Math.max(0, region.x());
+        int y0 = Math.max(0, region.y());
+        int x1 = Math.min(width, region.x() + w);
+        int y1 = Math.min(height, region.y() + h);
+        return x0 < x1 && y0 < y1 ? new Selection(x0, y0, x1 - x0, y1 - y0) : null;
+    }
+}
@@ -0,0 +1,109 @@
+package pt.iscte.greyditor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the wall time, pixels and memory allocated by each stage of the refresh of a window,
+ * and the time of the frames shown. Every measurement is also emitted as a {@link StageEvent}.
+ */
+class Metrics {
+    static final String EFFECT = "effect";
+    static final String OPERATION = "operation";
+    static final String RENDER = "render";
+    static final String LAYOUT = "layout";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final String window;
+    private final Map<String, Counter> stages = new LinkedHashMap<>();
+    private final Deque<Long> frames = new ArrayDeque<>();
+    private long lastFrame;
+
+    private static final class Counter {
+        final String kind;
+        final String name;
+        long calls, lastNanos, totalNanos, pixels, allocated;
+
+        Counter(String kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A measurement in progress
+     */
+    record Probe(long start, long allocated, StageEvent event) {
+    }
+
+    Metrics(String window) {
+        this.window = window;
+    }
+
+    Probe begin() {
+        StageEvent event = new StageEvent();
+        event.begin();
+        return new Probe(System.nanoTime(), allocatedBytes(), event);
+    }
+
+    void end(Probe probe, String kind, String name, long pixels) {
+        long nanos = System.nanoTime() - probe.start;
+        long allocated = Math.max(0, allocatedBytes() - probe.allocated);
+        StageEvent event = probe.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.window = window;
+            event.kind = kind;
+            event.stage = name;
+            event.pixels = pixels;
+            event.allocated = allocated;
+            event.commit();
+        }
+        synchronized (this) {
+            Counter c = stages.computeIfAbsent(kind + ":" + name, _ -> new Counter(kind, name));
+            c.calls++;
+            c.lastNanos = nanos;
+            c.totalNanos += nanos;
+            c.pixels += pixels;
+            c.allocated += allocated;
+        }
+    }
+
+    /**
+     * Records a frame shown on screen
+     * @param nanos time since the frame was requested
+     */
+    synchronized void frame(long nanos) {
+        long now = System.nanoTime();
+        lastFrame = nanos;
+        frames.addLast(now);
+        while (now - frames.getFirst() > 1_000_000_000L)
+            frames.removeFirst();
+    }
+
+    synchronized PipelineMetrics snapshot() {
+        long now = System.nanoTime();
+        while (!frames.isEmpty() && now - frames.getFirst() > 1_000_000_000L)
+            frames.removeFirst();
+        List<PipelineMetrics.Stage> list = new ArrayList<>();
+        for (Counter c : stages.values())
+            list.add(new PipelineMetrics.Stage(c.kind, c.name, c.calls,
+                    Duration.ofNanos(c.lastNanos), Duration.ofNanos(c.totalNanos), c.pixels, c.allocated));
+        return new PipelineMetrics(list, Duration.ofNanos(lastFrame), frames.size());
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or zero if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        return THREADS instanceof com.sun.management.ThreadMXBean t ? t.getCurrentThreadAllocatedBytes() : 0;
+    }
+}
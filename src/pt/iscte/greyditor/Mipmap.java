@@ -0,0 +1,73 @@
+package pt.iscte.greyditor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pyramid of reductions of an image for drawing it smaller than its size, where each level
+ * is half the size of the previous one (each pixel is the average of a square of 2x2 pixels).
+ * The levels are built when first needed, so that an image that is never zoomed out has none.
+ */
+final class Mipmap {
+    private final List<BufferedImage> levels = new ArrayList<>();
+
+    /**
+     * @param image RGB image (level 0), not copied
+     */
+    Mipmap(BufferedImage image) {
+        levels.add(image);
+    }
+
+    /**
+     * Returns the smallest level that is at least as large as the image drawn at a scale,
+     * so that the level is only reduced further when drawn (by less than half)
+     * @param scale positive scale, below 1 to reduce the image
+     */
+    BufferedImage level(double scale) {
+        int level = 0;
+        while (scale <= 0.5 && level < 30) {
+            scale *= 2;
+            level++;
+        }
+        while (levels.size() <= level) {
+            BufferedImage last = levels.getLast();
+            if (last.getWidth() == 1 && last.getHeight() == 1)
+                return last;
+            levels.add(halve(last));
+        }
+        return levels.get(level);
+    }
+
+    /**
+     * Averages each square of 2x2 pixels, per color channel (the last row and column
+     * of an odd dimension are averaged with themselves)
+     */
+    static BufferedImage halve(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int halfWidth = (width + 1) / 2;
+        int halfHeight = (height + 1) / 2;
+        BufferedImage half = new BufferedImage(halfWidth, halfHeight, BufferedImage.TYPE_INT_RGB);
+        int[] source = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int[] target = ((DataBufferInt) half.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < halfHeight; y++) {
+            int row0 = 2 * y * width;
+            int row1 = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < halfWidth; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, width - 1);
+                target[y * halfWidth + x] = average(source[row0 + x0], source[row0 + x1], source[row1 + x0], source[row1 + x1]);
+            }
+        }
+        return half;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int red = ((a >> 16 & 0xFF) + (b >> 16 & 0xFF) + (c >> 16 & 0xFF) + (d >> 16 & 0xFF) + 2) >> 2;
+        int green = ((a >> 8 & 0xFF) + (b >> 8 & 0xFF) + (c >> 8 & 0xFF) + (d >> 8 & 0xFF) + 2) >> 2;
+        int blue = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >> 2;
+        return 0xFF000000 | red << 16 | green << 8 | blue;
+    }
+}
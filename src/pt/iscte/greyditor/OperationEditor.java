@@ -1,5 +1,9 @@
 package pt.iscte.greyditor;
 
 public interface OperationEditor extends Operation {
+    /**
+     * @param image copy of the image, which drawings made through the editor while the operation runs also change
+     * @return the new image, or null if the image was changed in place
+     */
     int[][] run(int[][] image, Editor editor);
-}
\ No newline at end of file
+}
@@ -0,0 +1,392 @@
+package pt.iscte.greyditor;
+
+import java.awt.Dimension;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Reader and writer of PGM files (Netpbm gray images), both binary (P5) and ASCII (P2),
+ * with samples of 8 or 16 bits. Binary files are accessed through memory mapping, the pixels
+ * being copied from the mapped file straight into the rows of the image (and vice versa),
+ * without decoding them through ImageIO.
+ * Samples with a maximum value other than 255 are scaled to [0, 255] (16-bit samples keep
+ * their most significant byte, as with other 16-bit images).
+ */
+final class Pgm {
+    private static final long SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    private Pgm() {
+    }
+
+    /**
+     * Whether a file starts as a PGM file (by its content, regardless of its extension)
+     */
+    static boolean isPgm(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = in.readNBytes(2);
+            return magic.length == 2 && magic[0] == 'P' && (magic[1] == '5' || magic[1] == '2');
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static boolean hasPgmExtension(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".pgm") || lower.endsWith(".pnm");
+    }
+
+    /**
+     * Header of a PGM file
+     * @param position index of the whitespace that follows the maximum value
+     */
+    private record Header(boolean binary, int width, int height, int maxValue, long position) {
+        int sampleBytes() {
+            return maxValue > 255 ? 2 : 1;
+        }
+    }
+
+    /**
+     * Reads the header of a file, checking that the file is long enough for the dimension it declares
+     * (so that a corrupt header does not lead to allocating an image that is never filled)
+     */
+    private static Header header(Mapping in, Path file) throws IOException {
+        if (in.get(0) != 'P' || in.get(1) != '5' && in.get(1) != '2')
+            throw new IOException("Not a PGM file: " + file);
+        long[] position = {2};
+        int width = number(in, position, file);
+        int height = number(in, position, file);
+        int maxValue = number(in, position, file);
+        if (width < 1 || height < 1 || maxValue < 1 || maxValue > 65535)
+            throw new IOException("Invalid PGM header: " + file);
+        Header header = new Header(in.get(1) == '5', width, height, maxValue, position[0]);
+        long pixels = (long) width * height;
+        // binary samples follow a single whitespace, ASCII samples have at least one digit and a whitespace each
+        long bytes = header.binary ? 1 + pixels * header.sampleBytes() : 2 * pixels;
+        if (header.position + bytes > in.size)
+            throw new EOFException("Truncated PGM file: " + file);
+        return header;
+    }
+
+    /**
+     * Reads the dimension of a PGM file, without reading its pixels
+     * @throws IOException if the file cannot be read or is not a valid PGM file
+     */
+    static Dimension readSize(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header h = header(new Mapping(channel, FileChannel.MapMode.READ_ONLY), file);
+            return new Dimension(h.width, h.height);
+        }
+    }
+
+    /**
+     * Reads a PGM file
+     * @throws IOException if the file cannot be read, is not a valid PGM file, or has more pixels
+     *                     than an image edited in memory (see {@link Greyditor#maxImagePixels()})
+     */
+    static GreyBuffer read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Mapping in = new Mapping(channel, FileChannel.MapMode.READ_ONLY);
+            Header header = header(in, file);
+            int width = header.width;
+            int height = header.height;
+            int maxValue = header.maxValue;
+            if ((long) width * height > Greyditor.maxImagePixels())
+                throw new IOException("Too large image: " + width + "x" + height + " (" + file + ")");
+            long[] position = {header.position};
+
+            byte[][] rows = new byte[height][width];
+            if (header.binary) {
+                long offset = position[0] + 1; // a single whitespace after the maximum value
+                int sampleBytes = header.sampleBytes();
+                long rowBytes = (long) width * sampleBytes;
+                byte[] samples = sampleBytes == 1 && maxValue == 255 ? null : new byte[(int) rowBytes];
+                for (int y = 0; y < height; y++) {
+                    long start = offset + y * rowBytes;
+                    if (samples == null)
+                        in.get(start, rows[y]);
+                    else {
+                        in.get(start, samples);
+                        for (int x = 0; x < width; x++) {
+                            int sample = sampleBytes == 1 ? samples[x] & 0xFF :
+                                    (samples[2 * x] & 0xFF) << 8 | samples[2 * x + 1] & 0xFF;
+                            rows[y][x] = (byte) scale(sample, maxValue);
+                        }
+                    }
+                }
+            } else {
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        rows[y][x] = (byte) scale(number(in, position, file), maxValue);
+            }
+            return GreyBuffer.wrap(width, rows);
+        }
+    }
+
+    /**
+     * Reads a PGM file a row at a time, without keeping the image in memory
+     * @throws IOException if the file cannot be read or is not a valid PGM file
+     */
+    static RowSource rows(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            Mapping in = new Mapping(channel, FileChannel.MapMode.READ_ONLY);
+            Header header = header(in, file);
+            int sampleBytes = header.sampleBytes();
+            long rowBytes = (long) header.width * sampleBytes;
+            long offset = header.position + 1;
+            byte[] samples = header.binary ? new byte[(int) rowBytes] : null;
+            long[] position = {header.position};
+            return new RowSource() {
+                @Override
+                public int width() {
+                    return header.width;
+                }
+
+                @Override
+                public int height() {
+                    return header.height;
+                }
+
+                @Override
+                public void row(int y, byte[] row) throws IOException {
+                    if (!header.binary) {
+                        for (int x = 0; x < header.width; x++)
+                            row[x] = (byte) scale(number(in, position, file), header.maxValue);
+                        return;
+                    }
+                    in.get(offset + y * rowBytes, samples);
+                    for (int x = 0; x < header.width; x++) {
+                        int sample = sampleBytes == 1 ? samples[x] & 0xFF :
+                                (samples[2 * x] & 0xFF) << 8 | samples[2 * x + 1] & 0xFF;
+                        row[x] = (byte) scale(sample, header.maxValue);
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int scale(int sample, int maxValue) {
+        if (maxValue == 255)
+            return Math.min(sample, 255);
+        if (maxValue == 65535)
+            return sample >>> 8;
+        return (int) ((Math.min(sample, maxValue) * 255L + maxValue / 2) / maxValue);
+    }
+
+    /**
+     * Reads a decimal number, skipping the whitespace and comments before it
+     */
+    private static int number(Mapping in, long[] position, Path file) throws IOException {
+        long p = position[0];
+        int c;
+        while (true) {
+            c = in.get(p);
+            if (c == '#')
+                while (c != '\n' && c != '\r' && c != -1)
+                    c = in.get(++p);
+            if (c == -1)
+                throw new EOFException("Truncated PGM file: " + file);
+            if (!Character.isWhitespace(c))
+                break;
+            p++;
+        }
+        if (c < '0' || c > '9')
+            throw new IOException("Invalid PGM file: " + file);
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = Math.min(value * 10 + c - '0', Integer.MAX_VALUE);
+            c = in.get(++p);
+        }
+        position[0] = p;
+        return (int) value;
+    }
+
+    /**
+     * Writes an image to a PGM file, replacing it if it exists.
+     * Tones outside [0, 255] are clamped, and missing pixels of matrices with rows of different lengths are black.
+     * @param ascii true for an ASCII file (P2), false for a binary file (P5)
+     * @param sixteenBits true for 16-bit samples (the tones are multiplied by 257), false for 8-bit samples
+     * @param progress receives the fraction of rows written, from 0 to 1
+     * @param cancelled checked after each band of rows
+     * @throws CancellationException if cancelled (the target file is left untouched)
+     */
+    static void write(GreyBuffer image, Path file, boolean ascii, boolean sixteenBits,
+                      DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        write(RowSource.of(image), file, ascii, sixteenBits, progress, cancelled);
+    }
+
+    /**
+     * Writes an image that is given a row at a time (for instance, a tiled image)
+     */
+    static void write(RowSource image, Path file, boolean ascii, boolean sixteenBits,
+                      DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        if (image.width() < 1 || image.height() < 1)
+            throw new IllegalArgumentException("An image must have a dimension of at least 1x1");
+        int maxValue = sixteenBits ? 65535 : 255;
+        byte[] header = ((ascii ? "P2" : "P5") + "\n" + image.width() + " " + image.height() + "\n" + maxValue + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        AtomicFile.write(file, temp -> {
+            if (ascii)
+                writeAscii(image, temp, header, sixteenBits, progress, cancelled);
+            else
+                writeBinary(image, temp, header, sixteenBits, progress, cancelled);
+        });
+    }
+
+    private static void writeBinary(RowSource image, Path temp, byte[] header, boolean sixteenBits,
+                                    DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        int width = image.width();
+        int height = image.height();
+        int sampleBytes = sixteenBits ? 2 : 1;
+        long rowBytes = (long) width * sampleBytes;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Mapping out = new Mapping(channel, FileChannel.MapMode.READ_WRITE, header.length + rowBytes * height);
+            out.put(0, header);
+            byte[] row = new byte[width];
+            byte[] samples = sixteenBits ? new byte[(int) rowBytes] : null;
+            int band = Math.max(1, height / 100);
+            for (int y = 0; y < height; y++) {
+                image.row(y, row);
+                if (samples == null)
+                    out.put(header.length + y * rowBytes, row);
+                else {
+                    for (int x = 0; x < width; x++) {
+                        samples[2 * x] = row[x];
+                        samples[2 * x + 1] = row[x];
+                    }
+                    out.put(header.length + y * rowBytes, samples);
+                }
+                report(y, height, band, progress, cancelled);
+            }
+            out.force();
+        }
+    }
+
+    /**
+     * ASCII files are written as a stream, as the length of each row is only known once it is formatted
+     */
+    private static void writeAscii(RowSource image, Path temp, byte[] header, boolean sixteenBits,
+                                   DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            out.write(new String(header, StandardCharsets.US_ASCII));
+            int height = image.height();
+            byte[] row = new byte[image.width()];
+            int band = Math.max(1, height / 100);
+            StringBuilder line = new StringBuilder();
+            for (int y = 0; y < height; y++) {
+                image.row(y, row);
+                line.setLength(0);
+                for (int x = 0; x < row.length; x++) {
+                    int tone = row[x] & 0xFF;
+                    // lines of at most 70 characters, as recommended by the format
+                    if (line.length() > 64) {
+                        out.append(line).append('\n');
+                        line.setLength(0);
+                    } else if (x > 0)
+                        line.append(' ');
+                    line.append(sixteenBits ? tone * 257 : tone);
+                }
+                out.append(line).append('\n');
+                report(y, height, band, progress, cancelled);
+            }
+        }
+    }
+
+    private static void report(int y, int height, int band, DoubleConsumer progress, BooleanSupplier cancelled) {
+        if ((y + 1) % band == 0 || y == height - 1) {
+            if (cancelled.getAsBoolean())
+                throw new CancellationException("saving cancelled");
+            progress.accept((y + 1) / (double) height);
+        }
+    }
+
+    /**
+     * A file mapped in segments, so that files larger than 2 GB may be accessed
+     */
+    private static final class Mapping {
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+        private final long size;
+        private MappedByteBuffer segment;
+        private long start;
+
+        Mapping(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+            this(channel, mode, channel.size());
+        }
+
+        Mapping(FileChannel channel, FileChannel.MapMode mode, long size) {
+            this.channel = channel;
+            this.mode = mode;
+            this.size = size;
+        }
+
+        /**
+         * @return the byte at a position, or -1 beyond the end of the file
+         */
+        int get(long position) throws IOException {
+            if (position >= size)
+                return -1;
+            return segment(position, 1).get((int) (position - start)) & 0xFF;
+        }
+
+        void get(long position, byte[] bytes) throws IOException {
+            int done = 0;
+            while (done < bytes.length) {
+                MappedByteBuffer s = segment(position + done, bytes.length - done);
+                int offset = (int) (position + done - start);
+                int n = Math.min(bytes.length - done, s.capacity() - offset);
+                s.get(offset, bytes, done, n);
+                done += n;
+            }
+        }
+
+        void put(long position, byte[] bytes) throws IOException {
+            int done = 0;
+            while (done < bytes.length) {
+                MappedByteBuffer s = segment(position + done, bytes.length - done);
+                int offset = (int) (position + done - start);
+                int n = Math.min(bytes.length - done, s.capacity() - offset);
+                s.put(offset, bytes, done, n);
+                done += n;
+            }
+        }
+
+        void force() {
+            if (segment != null)
+                segment.force();
+        }
+
+        /**
+         * Maps the segment that contains a position, which holds the following bytes up to a length if possible
+         */
+        private MappedByteBuffer segment(long position, int length) throws IOException {
+            if (segment == null || position < start || position + Math.min(length, SEGMENT_BYTES) > start + segment.capacity()) {
+                force();
+                start = position;
+                segment = channel.map(mode, start, Math.min(SEGMENT_BYTES, size - start));
+            }
+            return segment;
+        }
+    }
+}
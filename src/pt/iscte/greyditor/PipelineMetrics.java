@@ -0,0 +1,43 @@
+package pt.iscte.greyditor;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Snapshot of the measurements of an editor window, to find which effects and operations are slow.
+ * Memory is the one allocated by the thread that ran the stage (work done by parallel effects
+ * on other threads is not included).
+ * @param stages measurements of each effect (or run of fused filters), operation, rendering and layout
+ * @param lastFrame time from the last change until the resulting frame was shown
+ * @param framesPerSecond number of frames shown in the last second
+ */
+public record PipelineMetrics(List<Stage> stages, Duration lastFrame, int framesPerSecond) {
+    /**
+     * Measurements of a stage
+     * @param kind "effect", "operation", "render" or "layout"
+     * @param name text of the effect or operation (fused filters are joined by +)
+     * @param calls number of executions
+     * @param last duration of the last execution
+     * @param total duration of all the executions
+     * @param pixels pixels processed in all the executions
+     * @param allocatedBytes bytes allocated in all the executions
+     */
+    public record Stage(String kind, String name, long calls, Duration last, Duration total,
+                        long pixels, long allocatedBytes) {
+    }
+
+    public PipelineMetrics {
+        stages = List.copyOf(stages);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(String.format("last frame %.1f ms, %d fps%n",
+                lastFrame.toNanos() / 1e6, framesPerSecond));
+        for (Stage s : stages)
+            text.append(String.format("%-9s %-24s %6d calls  last %8.2f ms  total %9.1f ms  %8.1f Mpixels  %8.1f MB%n",
+                    s.kind, s.name, s.calls, s.last.toNanos() / 1e6, s.total.toNanos() / 1e6,
+                    s.pixels / 1e6, s.allocatedBytes / 1e6));
+        return text.toString();
+    }
+}
@@ -0,0 +1,252 @@
+package pt.iscte.greyditor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decoder of PNG files that reads them a row at a time, inflating and unfiltering each row
+ * as it is requested, so that images larger than the memory may be opened as tiled images.
+ * All the color types and bit depths are supported, but not interlaced files (whose rows are
+ * spread over seven passes). Colors are converted to gray tones as in
+ * {@link Greyditor#getImageDataGray}, 16-bit samples keep their most significant byte,
+ * gray samples of fewer bits are scaled to [0, 255], and transparency is ignored.
+ */
+final class PngReader implements RowSource {
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    private final Path file;
+    private final DataInputStream chunks;
+    private final InputStream data;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int colorType;
+    private final int channels;
+    private final int bytesPerPixel;
+    private final byte[] palette = new byte[3 * 256];
+    private byte[] previous;
+    private byte[] current;
+    private int next;
+
+    private PngReader(Path file, DataInputStream chunks, int width, int height, int depth, int colorType) throws IOException {
+        this.file = file;
+        this.chunks = chunks;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.colorType = colorType;
+        channels = switch (colorType) {
+            case 0, 3 -> 1;
+            case 2 -> 3;
+            case 4 -> 2;
+            case 6 -> 4;
+            default -> throw new IOException("Invalid PNG color type: " + file);
+        };
+        boolean validDepth = switch (colorType) {
+            case 0 -> depth == 1 || depth == 2 || depth == 4 || depth == 8 || depth == 16;
+            case 3 -> depth == 1 || depth == 2 || depth == 4 || depth == 8;
+            default -> depth == 8 || depth == 16;
+        };
+        if (!validDepth)
+            throw new IOException("Invalid PNG bit depth: " + file);
+        bytesPerPixel = Math.max(1, channels * depth / 8);
+        long rowBytes = ((long) width * channels * depth + 7) / 8;
+        if (rowBytes > Integer.MAX_VALUE - 1)
+            throw new IOException("Too large image: " + file);
+        previous = new byte[(int) rowBytes];
+        current = new byte[(int) rowBytes];
+        data = new InflaterInputStream(new ImageData());
+    }
+
+    /**
+     * Opens a PNG file to read its rows
+     * @return the reader, or null if the file is not a PNG file or is interlaced
+     * @throws IOException if the file cannot be read or is not a valid PNG file
+     */
+    static PngReader open(Path file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            if (!Arrays.equals(in.readNBytes(SIGNATURE.length), SIGNATURE)) {
+                in.close();
+                return null;
+            }
+            if (in.readInt() != 13 || !"IHDR".equals(type(in)))
+                throw new IOException("Invalid PNG file: " + file);
+            int width = in.readInt();
+            int height = in.readInt();
+            int depth = in.readUnsignedByte();
+            int colorType = in.readUnsignedByte();
+            in.skipNBytes(2); // compression and filter methods, for which there is only one
+            int interlace = in.readUnsignedByte();
+            in.skipNBytes(4); // CRC
+            if (width < 1 || height < 1)
+                throw new IOException("Invalid PNG header: " + file);
+            if (interlace != 0) {
+                in.close();
+                return null;
+            }
+            return new PngReader(file, in, width, height, depth, colorType);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public void row(int y, byte[] row) throws IOException {
+        if (y != next)
+            throw new IllegalStateException("rows must be read in order: " + y);
+        next = y + 1;
+        byte[] t = previous;
+        previous = current;
+        current = t;
+        int filter = data.read();
+        if (filter == -1 || data.readNBytes(current, 0, current.length) < current.length)
+            throw new EOFException("Truncated PNG file: " + file);
+        unfilter(filter);
+        for (int x = 0; x < width; x++)
+            row[x] = (byte) tone(x);
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks.close();
+    }
+
+    private void unfilter(int filter) throws IOException {
+        for (int i = 0; i < current.length; i++) {
+            int a = i < bytesPerPixel ? 0 : current[i - bytesPerPixel] & 0xFF;
+            int b = previous[i] & 0xFF;
+            int c = i < bytesPerPixel ? 0 : previous[i - bytesPerPixel] & 0xFF;
+            int predictor = switch (filter) {
+                case 0 -> 0;
+                case 1 -> a;
+                case 2 -> b;
+                case 3 -> (a + b) >>> 1;
+                case 4 -> paeth(a, b, c);
+                default -> throw new IOException("Invalid PNG filter: " + file);
+            };
+            current[i] = (byte) (current[i] + predictor);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    /**
+     * Gray tone of a pixel of the current row
+     */
+    private int tone(int x) {
+        return switch (colorType) {
+            case 0 -> depth == 16 ? sample(x, 0) >>> 8 : sample(x, 0) * 255 / ((1 << depth) - 1);
+            case 3 -> {
+                int index = 3 * sample(x, 0);
+                yield Greyditor.luma(palette[index] & 0xFF, palette[index + 1] & 0xFF, palette[index + 2] & 0xFF);
+            }
+            case 4 -> depth == 16 ? sample(x, 0) >>> 8 : sample(x, 0);
+            default -> depth == 16 ?
+                    Greyditor.luma(sample(x, 0) >>> 8, sample(x, 1) >>> 8, sample(x, 2) >>> 8) :
+                    Greyditor.luma(sample(x, 0), sample(x, 1), sample(x, 2));
+        };
+    }
+
+    /**
+     * Sample of a channel of a pixel of the current row
+     */
+    private int sample(int x, int channel) {
+        if (depth == 8)
+            return current[x * channels + channel] & 0xFF;
+        if (depth == 16) {
+            int i = 2 * (x * channels + channel);
+            return (current[i] & 0xFF) << 8 | current[i + 1] & 0xFF;
+        }
+        int bit = x * depth;
+        int shift = 8 - depth - bit % 8;
+        return (current[bit / 8] >> shift) & ((1 << depth) - 1);
+    }
+
+    private static String type(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(4), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Stream of the data of the IDAT chunks, reading the palette of the chunks before them
+     */
+    private final class ImageData extends InputStream {
+        private final byte[] single = new byte[1];
+        private int remaining;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (remaining == 0) {
+                if (ended || !nextChunk())
+                    return -1;
+            }
+            int n = chunks.read(b, off, Math.min(len, remaining));
+            if (n == -1)
+                throw new EOFException("Truncated PNG file: " + file);
+            remaining -= n;
+            if (remaining == 0)
+                chunks.skipNBytes(4); // CRC
+            return n;
+        }
+
+        /**
+         * Moves to the data of the next IDAT chunk
+         * @return false if there are no more IDAT chunks
+         */
+        private boolean nextChunk() throws IOException {
+            while (true) {
+                int length = chunks.readInt();
+                String type = type(chunks);
+                if (length < 0)
+                    throw new IOException("Invalid PNG file: " + file);
+                if (type.equals("IDAT")) {
+                    remaining = length;
+                    if (length == 0)
+                        chunks.skipNBytes(4);
+                    return true;
+                }
+                if (type.equals("PLTE") && length <= palette.length)
+                    chunks.readFully(palette, 0, length);
+                else if (type.equals("IEND")) {
+                    ended = true;
+                    return false;
+                } else
+                    chunks.skipNBytes(length);
+                chunks.skipNBytes(4);
+            }
+        }
+    }
+}
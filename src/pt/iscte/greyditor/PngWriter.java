@@ -0,0 +1,240 @@
+package pt.iscte.greyditor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encoder of PNG files with a single 8-bit gray channel, written directly from the tones
+ * (one byte per pixel, a third of the data of an RGB image).
+ * Tones outside [0, 255] are clamped, and missing pixels of matrices with rows of different
+ * lengths are black. The file is first written to a temporary file in the same directory,
+ * which then replaces the target file, so that the target is never left half written.
+ * <pre>
+ * PngWriter writer = new PngWriter();
+ * writer.setCompressionLevel(9);
+ * writer.write(image, Path.of("out.png"));
+ * </pre>
+ */
+public final class PngWriter {
+    /**
+     * Transformation of each row before compression, which makes the data more compressible
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Chooses the filter of each row, as the one with the smallest sum of absolute differences
+         */
+        ADAPTIVE
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private Filter filter = Filter.ADAPTIVE;
+
+    /**
+     * @param level deflate level, from 0 (no compression, fastest) to 9 (smallest files), or -1 for the default
+     */
+    public void setCompressionLevel(int level) {
+        if (level < -1 || level > 9)
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        this.level = level;
+    }
+
+    /**
+     * @param filter filter of the rows (by default, adaptive)
+     */
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Writes an image to a PNG file, replacing it if it exists
+     * @param image matrix of tones
+     * @param file target file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(int[][] image, Path file) throws IOException {
+        write(GreyBuffer.of(image), file, _ -> {}, () -> false);
+    }
+
+    /**
+     * Writes an image to a PNG file, reporting the progress after each band of rows
+     * @param progress receives the fraction of rows written, from 0 to 1
+     * @param cancelled checked after each band of rows
+     * @throws CancellationException if cancelled (the target file is left untouched)
+     */
+    void write(GreyBuffer image, Path file, DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        write(RowSource.of(image), file, progress, cancelled);
+    }
+
+    /**
+     * Writes an image that is given a row at a time (for instance, a tiled image)
+     */
+    void write(RowSource image, Path file, DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        if (image.width() < 1 || image.height() < 1)
+            throw new IllegalArgumentException("An image must have a dimension of at least 1x1");
+        AtomicFile.write(file, temp -> {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+                encode(image, out, progress, cancelled);
+            }
+        });
+    }
+
+    private void encode(RowSource image, DataOutputStream out, DoubleConsumer progress, BooleanSupplier cancelled) throws IOException {
+        out.write(SIGNATURE);
+        Chunk header = new Chunk(out, "IHDR");
+        DataOutputStream h = new DataOutputStream(header);
+        h.writeInt(image.width());
+        h.writeInt(image.height());
+        h.write(new byte[]{8, 0, 0, 0, 0}); // 8 bits, gray, deflate, standard filters, no interlace
+        header.close();
+
+        Chunk data = new Chunk(out, "IDAT");
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream z = new DeflaterOutputStream(data, deflater, CHUNK_BYTES)) {
+            int width = image.width();
+            int height = image.height();
+            byte[] previous = new byte[width];
+            byte[] current = new byte[width];
+            byte[] filtered = new byte[width + 1];
+            byte[] best = new byte[width + 1];
+            int band = Math.max(1, height / 100);
+            for (int y = 0; y < height; y++) {
+                image.row(y, current);
+                if (filter == Filter.ADAPTIVE) {
+                    long smallest = Long.MAX_VALUE;
+                    for (int type = 0; type < 5; type++) {
+                        long cost = filter(type, current, previous, filtered);
+                        if (cost < smallest) {
+                            smallest = cost;
+                            byte[] t = best;
+                            best = filtered;
+                            filtered = t;
+                        }
+                    }
+                    z.write(best);
+                } else {
+                    filter(filter.ordinal(), current, previous, filtered);
+                    z.write(filtered);
+                }
+                byte[] t = previous;
+                previous = current;
+                current = t;
+                if ((y + 1) % band == 0 || y == height - 1) {
+                    if (cancelled.getAsBoolean())
+                        throw new CancellationException("saving cancelled");
+                    progress.accept((y + 1) / (double) height);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        data.close();
+        new Chunk(out, "IEND").close();
+    }
+
+    /**
+     * Filters a row, preceded by the filter type
+     * @return the sum of the absolute values of the filtered bytes (as signed)
+     */
+    private static long filter(int type, byte[] row, byte[] previous, byte[] filtered) {
+        filtered[0] = (byte) type;
+        long sum = 0;
+        for (int x = 0; x < row.length; x++) {
+            int a = x == 0 ? 0 : row[x - 1] & 0xFF;
+            int b = previous[x] & 0xFF;
+            int c = x == 0 ? 0 : previous[x - 1] & 0xFF;
+            int predictor = switch (type) {
+                case 0 -> 0;
+                case 1 -> a;
+                case 2 -> b;
+                case 3 -> (a + b) >>> 1;
+                default -> paeth(a, b, c);
+            };
+            byte value = (byte) (row[x] - predictor);
+            filtered[x + 1] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    /**
+     * Stream of the data of chunks of a type, written as chunks of at most CHUNK_BYTES bytes
+     */
+    private static final class Chunk extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] type;
+        private final byte[] buffer = new byte[CHUNK_BYTES];
+        private int length;
+        private boolean empty = true;
+
+        Chunk(DataOutputStream out, String type) {
+            this.out = out;
+            this.type = type.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == buffer.length)
+                flushChunk();
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length)
+                    flushChunk();
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(buffer, 0, length);
+            out.writeInt(length);
+            out.write(type);
+            out.write(buffer, 0, length);
+            out.writeInt((int) crc.getValue());
+            length = 0;
+            empty = false;
+        }
+
+        /**
+         * Writes the remaining data (an empty chunk if there was no data at all)
+         */
+        @Override
+        public void close() throws IOException {
+            if (length > 0 || empty)
+                flushChunk();
+        }
+    }
+}
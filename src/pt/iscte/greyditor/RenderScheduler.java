@@ -0,0 +1,97 @@
+package pt.iscte.greyditor;
+
+import javax.swing.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates render requests in the background, keeping only the most recent one.
+ * The requests of a window are evaluated one at a time, on threads that may be shared with other windows.
+ * Requests that arrive while a frame is being computed replace each other, so that at most
+ * one request is pending. A finished frame is published on the Event Dispatch Thread
+ * only if no newer request was submitted in the meantime, and so is the failure of a request.
+ */
+class RenderScheduler {
+    private record Request(long generation, Supplier<GreyBuffer> job, Consumer<GreyBuffer> publish) {
+    }
+
+    private final Executor executor;
+    private final Consumer<Throwable> failure;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicReference<Request> pending = new AtomicReference<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * @param failure receives the errors of the requests (runs on the Event Dispatch Thread)
+     */
+    RenderScheduler(Executor executor, Consumer<Throwable> failure) {
+        this.executor = executor;
+        this.failure = failure;
+    }
+
+    /**
+     * Schedules a frame, superseding any request not yet published.
+     * @param job computes the frame (runs in the background)
+     * @param publish receives the frame (runs on the Event Dispatch Thread)
+     */
+    void submit(Supplier<GreyBuffer> job, Consumer<GreyBuffer> publish) {
+        pending.set(new Request(generation.incrementAndGet(), job, publish));
+        schedule();
+    }
+
+    /**
+     * Discards the requests that were not yet published
+     */
+    void cancel() {
+        generation.incrementAndGet();
+        pending.set(null);
+    }
+
+    void shutdown() {
+        cancel();
+    }
+
+    private void schedule() {
+        if (pending.get() != null && running.compareAndSet(false, true))
+            executor.execute(this::drain);
+    }
+
+    private void drain() {
+        try {
+            evaluate();
+        } finally {
+            running.set(false);
+            schedule();
+        }
+    }
+
+    private void evaluate() {
+        Request request;
+        while ((request = pending.getAndSet(null)) != null) {
+            if (request.generation != generation.get())
+                continue;
+            Request r = request;
+            GreyBuffer frame;
+            try {
+                frame = request.job.get();
+            } catch (Throwable e) {
+                SwingUtilities.invokeLater(() -> {
+                    if (r.generation == generation.get())
+                        failure.accept(e);
+                });
+                // the state is reset by drain, but the virtual machine cannot be trusted to go on
+                if (e instanceof VirtualMachineError error)
+                    throw error;
+                continue;
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (r.generation == generation.get())
+                    r.publish.accept(frame);
+            });
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package pt.iscte.greyditor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits an image into bands of consecutive rows that are processed in parallel.
+ * Each band is passed to the action as a matrix sharing the rows of the image,
+ * hence the modifications of the action are made on the image itself
+ * (rows replaced by the action are copied back to the image).
+ * <p>
+ * Actions that read the neighbouring rows are given a halo: a band with copies of the rows
+ * within the halo distance above and below, of which only the middle rows are kept.
+ */
+@SuppressWarnings("serial") // tasks are never serialized
+class RowBands extends RecursiveAction {
+    private static final int MIN_ROWS = 16;
+
+    private final int[][] image;
+    private final int from;
+    private final int to;
+    private final int bandRows;
+    private final EffectSimple action;
+    private final int[][] source;
+    private final int halo;
+
+    private RowBands(int[][] image, int from, int to, int bandRows, EffectSimple action, int[][] source, int halo) {
+        this.image = image;
+        this.from = from;
+        this.to = to;
+        this.bandRows = bandRows;
+        this.action = action;
+        this.source = source;
+        this.halo = halo;
+    }
+
+    static void apply(int[][] image, EffectSimple action) {
+        apply(image, action, 0);
+    }
+
+    /**
+     * @param halo number of rows above and below each band that the action reads
+     */
+    static void apply(int[][] image, EffectSimple action, int halo) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int bandRows = Math.max(Math.max(MIN_ROWS, 2 * halo), image.length / (pool.getParallelism() * 4));
+        if (image.length <= bandRows)
+            action.apply(image);
+        else
+            pool.invoke(new RowBands(image, 0, image.length, bandRows, action, image.clone(), halo));
+    }
+
+    static EffectSimple parallel(EffectSimple action) {
+        return image -> apply(image, action);
+    }
+
+    static EffectSimple parallel(EffectSimple action, int halo) {
+        return image -> apply(image, action, halo);
+    }
+
+    /**
+     * Applies an action band by band on the current thread, so that a chain of point-wise
+     * actions goes through each band while it is in the processor cache
+     */
+    static void serial(int[][] image, EffectSimple action, int bandRows) {
+        for (int y = 0; y < image.length; y += bandRows) {
+            int[][] band = Arrays.copyOfRange(image, y, Math.min(image.length, y + bandRows));
+            action.apply(band);
+            System.arraycopy(band, 0, image, y, band.length);
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= bandRows) {
+            if (halo == 0) {
+                int[][] band = from == 0 && to == image.length ? image : Arrays.copyOfRange(image, from, to);
+                action.apply(band);
+                System.arraycopy(band, 0, image, from, band.length);
+            } else {
+                int start = Math.max(0, from - halo);
+                int[][] band = new int[Math.min(image.length, to + halo) - start][];
+                for (int i = 0; i < band.length; i++)
+                    band[i] = source[start + i] == null ? null : source[start + i].clone();
+                action.apply(band);
+                System.arraycopy(band, from - start, image, from, to - from);
+            }
+        } else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new RowBands(image, from, mid, bandRows, action, source, halo),
+                    new RowBands(image, mid, to, bandRows, action, source, halo));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package pt.iscte.greyditor;
+
+/**
+ * Arithmetic on rows of pixels, the inner loops of the convolution engine and of tone expressions.
+ * The implementation based on the Vector API is used when the jdk.incubator.vector module
+ * is available (java --add-modules jdk.incubator.vector) and the system property
+ * greyditor.vector is not false; otherwise, plain loops are used.
+ */
+interface RowKernels {
+    RowKernels SCALAR = new RowKernels() {
+        @Override
+        public void correlate(float[] src, float[] taps, float[] dst, int n) {
+            for (int x = 0; x < n; x++) {
+                float sum = dst[x];
+                for (int i = 0; i < taps.length; i++)
+                    sum += taps[i] * src[x + i];
+                dst[x] = sum;
+            }
+        }
+
+        @Override
+        public void axpy(float a, float[] src, float[] dst, int n) {
+            for (int x = 0; x < n; x++)
+                dst[x] += a * src[x];
+        }
+
+        @Override
+        public void evaluate(float[] program, int[][] image) {
+            for (int[] row : image)
+                if (row != null)
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = ToneExpression.evaluate(program, row[x]);
+        }
+    };
+
+    RowKernels DEFAULT = select();
+
+    /**
+     * Accumulates the correlation of a row with a kernel: dst[x] += sum of taps[i] * src[x + i]
+     * @param src row with at least n + taps.length - 1 elements
+     * @param n number of elements of dst to compute
+     */
+    void correlate(float[] src, float[] taps, float[] dst, int n);
+
+    /**
+     * Accumulates a scaled row: dst[x] += a * src[x]
+     */
+    void axpy(float a, float[] src, float[] dst, int n);
+
+    /**
+     * Replaces every tone of an image by the result of the steps of a tone expression
+     * @param program steps bound to a value (see {@link ToneExpression#bind(int)})
+     */
+    void evaluate(float[] program, int[][] image);
+
+    /**
+     * Whether the default kernels use the Vector API
+     */
+    static boolean isVectorized() {
+        return DEFAULT != SCALAR;
+    }
+
+    private static RowKernels select() {
+        if (!Boolean.parseBoolean(System.getProperty("greyditor.vector", "true")) ||
+                ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return SCALAR;
+        try {
+            return new VectorRowKernels();
+        } catch (LinkageError e) {
+            return SCALAR;
+        }
+    }
+}
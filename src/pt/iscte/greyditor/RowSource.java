@@ -0,0 +1,56 @@
+package pt.iscte.greyditor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Image that is read a row at a time, from top to bottom, so that it never has to be in memory
+ * as a whole (for instance, a file being decoded, or a tiled image going through the effects).
+ */
+interface RowSource extends Closeable {
+    int width();
+
+    int height();
+
+    /**
+     * Copies the tones of a row as unsigned bytes, clamping the tones outside [0, 255]
+     * @param y index of the row, where each row is requested after the previous one
+     * @param row array with the width of the image
+     */
+    void row(int y, byte[] row) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Rows of a buffer (missing pixels of buffers with rows of different lengths are black)
+     */
+    static RowSource of(GreyBuffer image) {
+        int[] tones = new int[image.width];
+        return new RowSource() {
+            @Override
+            public int width() {
+                return image.width;
+            }
+
+            @Override
+            public int height() {
+                return image.height;
+            }
+
+            @Override
+            public void row(int y, byte[] row) {
+                if (!image.isRagged()) { // outliers are clamped in the rows
+                    System.arraycopy(image.row(y), 0, row, 0, row.length);
+                    return;
+                }
+                Arrays.fill(tones, 0);
+                image.getRow(y, tones);
+                for (int x = 0; x < row.length; x++)
+                    row[x] = (byte) Math.clamp(tones[x], 0, 255);
+            }
+        };
+    }
+}
@@ -9,7 +9,25 @@ public record Selection(int x, int y, int width, int height) {
         return new Selection(this.x + x, this.y + y, width, height);
     }
 
-    Selection scaleDown(int f) {
-        return new Selection(x / f, y / f, width / f, height / f);
+    /**
+     * Converts a selection on the screen to the pixels of the image shown at a scale
+     * (a single point stays single, and a region covers the pixels under it)
+     */
+    Selection scaleDown(double scale) {
+        int x0 = (int) Math.floor(x / scale);
+        int y0 = (int) Math.floor(y / scale);
+        if (isSingle())
+            return new Selection(x0, y0, -1, -1);
+        return new Selection(x0, y0, (int) Math.floor((x + width) / scale) - x0, (int) Math.floor((y + height) / scale) - y0);
+    }
+
+    /**
+     * Converts a selection on an image subsampled by a factor to the pixels of the full image
+     * (a single point stays single)
+     */
+    Selection scaleUp(int factor) {
+        if (isSingle())
+            return new Selection(x * factor, y * factor, -1, -1);
+        return new Selection(x * factor, y * factor, width * factor, height * factor);
     }
 }
\ No newline at end of file
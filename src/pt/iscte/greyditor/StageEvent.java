@@ -0,0 +1,35 @@
+package pt.iscte.greyditor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a stage of the refresh of an editor window
+ * (an effect, a run of fused filters, an operation, the rendering or the layout of the frame).
+ * Recorded with, for instance, java -XX:StartFlightRecording:filename=greyditor.jfr
+ */
+@Name("pt.iscte.greyditor.Stage")
+@Label("Greyditor Stage")
+@Category("Greyditor")
+@Description("Execution of a stage of the refresh of an editor window")
+class StageEvent extends Event {
+    @Label("Window")
+    String window;
+
+    @Label("Kind")
+    String kind;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,481 @@
+package pt.iscte.greyditor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Grayscale image of arbitrary size, split in square tiles that are stored in a memory-mapped scratch file.
+ * Tiles are loaded on demand as matrices and kept in memory up to a budget, beyond which
+ * the least recently used ones are written back to the file.
+ * Tones are stored in the range [0, 255]; values outside the range are clamped when stored.
+ * <p>
+ * Filters and effects are applied to bands of full rows (with the rows around each band that
+ * they depend on, see {@link EffectTraits}), and regions of the image may be read and written
+ * as matrices, so that the existing effects and operations can be used on a window of the image.
+ */
+public final class TiledImage implements Closeable {
+    public static final int TILE_SIZE = 512;
+
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE;
+    private static final int SEGMENT_TILES = 1024;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final Map<Integer, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBudget = 256L * 1024 * 1024;
+    private long memory;
+
+    private static final class Tile {
+        final int[][] pixels;
+        boolean dirty;
+
+        Tile(int[][] pixels) {
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * Creates a black image
+     * @param width positive width
+     * @param height positive height
+     * @throws IOException if the scratch file cannot be created
+     */
+    public TiledImage(int width, int height) throws IOException {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("An image must have a dimension of at least 1x1");
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        if ((long) tilesX * tilesY > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("Too large image: " + width + "x" + height);
+        int tileCount = tilesX * tilesY;
+        file = Files.createTempFile("greyditor", ".tiles");
+        file.toFile().deleteOnExit();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.allocate(1), (long) tileCount * TILE_BYTES - 1);
+        segments = new MappedByteBuffer[(tileCount + SEGMENT_TILES - 1) / SEGMENT_TILES];
+    }
+
+    /**
+     * Reads an image file a row at a time, so that it never has to fit in memory as a whole.
+     * PGM files and (non-interlaced) PNG files are decoded in a single pass over the file,
+     * while other formats are decoded through ImageIO in bands of rows, which only avoids
+     * decoding the file again for each band if the format has an index of its rows (such as TIFF).
+     * @param inputFile image file in a format supported by ImageIO, or a PGM file
+     * @return a tiled image with the gray tones of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static TiledImage read(File inputFile) throws IOException {
+        try (RowSource rows = open(inputFile)) {
+            TiledImage image = new TiledImage(rows.width(), rows.height());
+            try {
+                byte[] row = new byte[image.width];
+                for (int y = 0; y < image.height; y++) {
+                    rows.row(y, row);
+                    image.store(y, row);
+                }
+            } catch (IOException | RuntimeException e) {
+                image.close();
+                throw e;
+            }
+            return image;
+        }
+    }
+
+    private static RowSource open(File inputFile) throws IOException {
+        if (Pgm.isPgm(inputFile.toPath()))
+            return Pgm.rows(inputFile.toPath());
+        RowSource png = PngReader.open(inputFile.toPath());
+        return png != null ? png : new ImageBands(inputFile);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Sets the memory available for the tiles that are loaded as matrices
+     * @param bytes memory budget (at least one tile is always kept in memory)
+     */
+    public synchronized void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+        evict();
+    }
+
+    /**
+     * Returns a copy of a region of the image
+     * @param x left of the region
+     * @param y top of the region
+     * @param width width of the region
+     * @param height height of the region
+     * @return a new well-formed matrix
+     */
+    public synchronized int[][] getRegion(int x, int y, int width, int height) throws IOException {
+        checkRegion(x, y, width, height);
+        int[][] region = new int[height][width];
+        for (int ty = y / TILE_SIZE; ty <= (y + height - 1) / TILE_SIZE; ty++)
+            for (int tx = x / TILE_SIZE; tx <= (x + width - 1) / TILE_SIZE; tx++) {
+                int[][] pixels = tile(tx, ty).pixels;
+                int x0 = Math.max(x, tx * TILE_SIZE);
+                int x1 = Math.min(x + width, (tx + 1) * TILE_SIZE);
+                int y0 = Math.max(y, ty * TILE_SIZE);
+                int y1 = Math.min(y + height, (ty + 1) * TILE_SIZE);
+                for (int py = y0; py < y1; py++)
+                    System.arraycopy(pixels[py - ty * TILE_SIZE], x0 - tx * TILE_SIZE, region[py - y], x0 - x, x1 - x0);
+            }
+        return region;
+    }
+
+    /**
+     * Writes a region of the image
+     * @param x left of the region
+     * @param y top of the region
+     * @param region well-formed matrix with the tones of the region
+     */
+    public synchronized void setRegion(int x, int y, int[][] region) throws IOException {
+        int w = region.length == 0 ? 0 : region[0].length;
+        checkRegion(x, y, w, region.length);
+        for (int ty = y / TILE_SIZE; ty <= (y + region.length - 1) / TILE_SIZE; ty++)
+            for (int tx = x / TILE_SIZE; tx <= (x + w - 1) / TILE_SIZE; tx++) {
+                Tile tile = tile(tx, ty);
+                int x0 = Math.max(x, tx * TILE_SIZE);
+                int x1 = Math.min(x + w, (tx + 1) * TILE_SIZE);
+                int y0 = Math.max(y, ty * TILE_SIZE);
+                int y1 = Math.min(y + region.length, (ty + 1) * TILE_SIZE);
+                for (int py = y0; py < y1; py++)
+                    System.arraycopy(region[py - y], x0 - x, tile.pixels[py - ty * TILE_SIZE], x0 - tx * TILE_SIZE, x1 - x0);
+                tile.dirty = true;
+            }
+    }
+
+    /**
+     * Applies a filter to every pixel
+     */
+    public void filter(FilterSimple filter) throws IOException {
+        apply(new Greyditor.FilterAdapter(filter), EffectTraits.FILTER);
+    }
+
+    /**
+     * Applies a filter with a given value to every pixel
+     */
+    public void filter(FilterValue filter, int value) throws IOException {
+        apply(new Greyditor.FilterValueAdapter(filter), value, EffectTraits.FILTER);
+    }
+
+    /**
+     * Applies an effect that transforms every row independently of the others (see {@link EffectTraits#rowwise()})
+     * to bands of rows of the image
+     */
+    public void apply(EffectSimple effect) throws IOException {
+        apply(effect, EffectTraits.rowwise());
+    }
+
+    /**
+     * Applies an effect with a given value that transforms every row independently of the others
+     * (see {@link EffectTraits#rowwise()}) to bands of rows of the image
+     */
+    public void apply(EffectValue effect, int value) throws IOException {
+        apply(effect, value, EffectTraits.rowwise());
+    }
+
+    /**
+     * Applies an effect to bands of full rows of the image, each given with the rows above and below
+     * it within the radius of the effect (as they were before the effect)
+     * @param traits description of the effect, which cannot be global
+     * @throws IllegalArgumentException if the effect may depend on any pixel of the image
+     */
+    public void apply(EffectSimple effect, EffectTraits traits) throws IOException {
+        applyInBands(effect, halo(traits, 0));
+    }
+
+    /**
+     * Applies an effect with a given value to bands of full rows of the image (see {@link #apply(EffectSimple, EffectTraits)})
+     */
+    public void apply(EffectValue effect, int value, EffectTraits traits) throws IOException {
+        applyInBands(image -> effect.apply(image, value), halo(traits, value));
+    }
+
+    private static int halo(EffectTraits traits, int value) {
+        return switch (traits.locality()) {
+            case POINT, ROW -> 0;
+            case NEIGHBOURHOOD -> Math.max(0, traits.radius(value));
+            case GLOBAL -> throw new IllegalArgumentException("an effect that may depend on any pixel cannot be applied to a tiled image");
+        };
+    }
+
+    /**
+     * Applies an effect band by band, where each band is written only after the next one is computed,
+     * as the halo of the next band includes rows of the previous one
+     * (bands are at least as high as the halo, so that a halo never goes beyond the previous band)
+     */
+    private synchronized void applyInBands(EffectSimple effect, int halo) throws IOException {
+        int bandRows = Math.max(TILE_SIZE, halo);
+        int[][] pending = null;
+        int pendingY = 0;
+        for (int y = 0; y < height; y += bandRows) {
+            int[][] band = band(effect, halo, y, Math.min(bandRows, height - y));
+            if (pending != null)
+                setRegion(0, pendingY, pending);
+            pending = band;
+            pendingY = y;
+        }
+        setRegion(0, pendingY, pending);
+    }
+
+    /**
+     * Returns the rows of the image with an effect applied, computed band by band as they are read
+     * (see {@link #apply(EffectSimple, EffectTraits)}), without modifying the image
+     * @param halo number of rows above and below each band that the effect reads
+     */
+    RowSource rows(EffectSimple effect, int halo) {
+        return new RowSource() {
+            final int bandRows = Math.max(TILE_SIZE, halo);
+            int[][] band;
+            int bandY;
+
+            @Override
+            public int width() {
+                return width;
+            }
+
+            @Override
+            public int height() {
+                return height;
+            }
+
+            @Override
+            public void row(int y, byte[] row) throws IOException {
+                if (band == null || y < bandY || y >= bandY + band.length) {
+                    bandY = y / bandRows * bandRows;
+                    band = band(effect, halo, bandY, Math.min(bandRows, height - bandY));
+                }
+                int[] tones = band[y - bandY];
+                for (int x = 0; x < row.length; x++)
+                    row[x] = (byte) Math.clamp(tones[x], 0, 255);
+            }
+        };
+    }
+
+    /**
+     * Applies an effect to the rows [y, y + h[, given with up to halo rows above and below
+     * @return the resulting rows
+     */
+    private int[][] band(EffectSimple effect, int halo, int y, int h) throws IOException {
+        int top = Math.max(0, y - halo);
+        int[][] region = getRegion(0, top, width, Math.min(height, y + h + halo) - top);
+        effect.apply(region);
+        int[][] rows = Arrays.copyOfRange(region, y - top, y - top + h);
+        for (int[] row : rows)
+            if (row == null || row.length != width)
+                throw new IllegalStateException("an effect applied to a tiled image cannot change its dimension");
+        return rows;
+    }
+
+    /**
+     * Runs an operation over a region of the image.
+     * If the operation returns a matrix with the dimension of the region, it replaces the region,
+     * otherwise the modifications made to the given matrix are kept.
+     * @param selection region of the image
+     * @param operation operation to run
+     */
+    public synchronized void apply(Selection selection, OperationSimple operation) throws IOException {
+        int[][] region = getRegion(selection.x(), selection.y(), selection.width(), selection.height());
+        int[][] result = operation.run(region);
+        if (result != null && result.length == region.length && result.length > 0 && result[0].length == region[0].length)
+            region = result;
+        setRegion(selection.x(), selection.y(), region);
+    }
+
+    /**
+     * Writes all the modified tiles to the scratch file
+     */
+    public synchronized void flush() {
+        for (Map.Entry<Integer, Tile> e : tiles.entrySet())
+            store(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Releases the tiles and deletes the scratch file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        tiles.clear();
+        memory = 0;
+        channel.close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // mapped files cannot be deleted on some platforms, deleteOnExit takes care of it
+        }
+    }
+
+    private void checkRegion(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w < 1 || h < 1 || x + w > width || y + h > height)
+            throw new IllegalArgumentException("invalid region: " + x + ", " + y + " " + w + "x" + h);
+    }
+
+    /**
+     * Writes a row straight to the scratch file, which is only valid while none of its tiles is in memory
+     */
+    private void store(int y, byte[] row) throws IOException {
+        for (int tx = 0; tx < tilesX; tx++) {
+            int index = (y / TILE_SIZE) * tilesX + tx;
+            int x = tx * TILE_SIZE;
+            segment(index).put((index % SEGMENT_TILES) * TILE_BYTES + (y % TILE_SIZE) * TILE_SIZE,
+                    row, x, Math.min(TILE_SIZE, width - x));
+        }
+    }
+
+    private Tile tile(int tx, int ty) throws IOException {
+        int index = ty * tilesX + tx;
+        Tile tile = tiles.get(index);
+        if (tile == null) {
+            int w = Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+            int h = Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+            int[][] pixels = new int[h][w];
+            MappedByteBuffer segment = segment(index);
+            int offset = (index % SEGMENT_TILES) * TILE_BYTES;
+            byte[] row = new byte[w];
+            for (int y = 0; y < h; y++) {
+                segment.get(offset + y * TILE_SIZE, row);
+                for (int x = 0; x < w; x++)
+                    pixels[y][x] = row[x] & 0xFF;
+            }
+            tile = new Tile(pixels);
+            tiles.put(index, tile);
+            memory += sizeOf(tile);
+            evict();
+        }
+        return tile;
+    }
+
+    private void store(int index, Tile tile) {
+        if (!tile.dirty)
+            return;
+        MappedByteBuffer segment;
+        try {
+            segment = segment(index);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int offset = (index % SEGMENT_TILES) * TILE_BYTES;
+        byte[] row = new byte[tile.pixels[0].length];
+        for (int y = 0; y < tile.pixels.length; y++) {
+            for (int x = 0; x < row.length; x++)
+                row[x] = (byte) Math.max(0, Math.min(255, tile.pixels[y][x]));
+            segment.put(offset + y * TILE_SIZE, row);
+        }
+        tile.dirty = false;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, Tile>> it = tiles.entrySet().iterator();
+        while (memory > memoryBudget && tiles.size() > 1 && it.hasNext()) {
+            Map.Entry<Integer, Tile> e = it.next();
+            store(e.getKey(), e.getValue());
+            memory -= sizeOf(e.getValue());
+            it.remove();
+        }
+    }
+
+    private MappedByteBuffer segment(int tileIndex) throws IOException {
+        int s = tileIndex / SEGMENT_TILES;
+        if (segments[s] == null) {
+            long start = (long) s * SEGMENT_TILES * TILE_BYTES;
+            long size = Math.min((long) SEGMENT_TILES * TILE_BYTES, channel.size() - start);
+            segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+        return segments[s];
+    }
+
+    private static long sizeOf(Tile tile) {
+        return (long) tile.pixels.length * (16L + 4L * tile.pixels[0].length);
+    }
+
+    /**
+     * Rows of an image file decoded through ImageIO, a band of rows at a time, by a single reader
+     */
+    private static final class ImageBands implements RowSource {
+        private final ImageInputStream in;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private int[][] band;
+        private int bandY;
+
+        ImageBands(File inputFile) throws IOException {
+            in = ImageIO.createImageInputStream(inputFile);
+            if (in == null)
+                throw new IOException("File not found: " + inputFile.getAbsolutePath());
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                in.close();
+                throw new IOException("Unsupported image format: " + inputFile.getAbsolutePath());
+            }
+            reader = readers.next();
+            try {
+                reader.setInput(in, false, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public void row(int y, byte[] row) throws IOException {
+            if (band == null || y >= bandY + band.length) {
+                bandY = y;
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, y, width, Math.min(TILE_SIZE, height - y)));
+                band = Greyditor.getImageDataGray(reader.read(0, param));
+            }
+            int[] tones = band[y - bandY];
+            for (int x = 0; x < row.length; x++)
+                row[x] = (byte) tones[x];
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            in.close();
+        }
+    }
+}
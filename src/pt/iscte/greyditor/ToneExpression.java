@@ -0,0 +1,238 @@
+package pt.iscte.greyditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A filter declared as a sequence of simple steps over the tone (affine transformations, clamping
+ * and thresholding), whose parameters may depend on the value of the slider.
+ * Unlike an arbitrary lambda, the steps are known to the editor, which applies consecutive
+ * expression filters as a single pass over the pixels in vector lanes, when the Vector API
+ * is available (otherwise, as any other filter, through a lookup table).
+ * The steps are computed with floats and the result is rounded to the nearest integer.
+ * <pre>
+ * // tone * (1 + value / 100), clamped to [0, 255]
+ * configuration.addFilter("Gain", ToneExpression.tone().scale(1, 0.01).clamp(0, 255), 0, 100);
+ * configuration.addFilter("Invert", ToneExpression.invert());
+ * configuration.addFilter("Brightness", ToneExpression.brightness(), -100, 100);
+ * </pre>
+ */
+public final class ToneExpression implements FilterSimple, FilterValue {
+    static final int AFFINE = 0;
+    static final int CLAMP = 1;
+    static final int THRESHOLD = 2;
+    static final int ROUND = 3;
+
+    /**
+     * A step with two parameters, p + pv * value and q + qv * value
+     */
+    private record Step(int kind, double p, double pv, double q, double qv) {
+    }
+
+    private final List<Step> steps;
+
+    private ToneExpression(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * The identity, to which steps are added
+     */
+    public static ToneExpression tone() {
+        return new ToneExpression(List.of());
+    }
+
+    /**
+     * 255 - tone
+     */
+    public static ToneExpression invert() {
+        return tone().times(-1).plus(255);
+    }
+
+    /**
+     * tone + value, clamped to [0, 255]
+     */
+    public static ToneExpression brightness() {
+        return tone().offset(0, 1).clamp(0, 255);
+    }
+
+    /**
+     * Stretches the tones away from the middle gray by value percent, clamped to [0, 255]
+     */
+    public static ToneExpression contrast() {
+        return tone().plus(-128).scale(1, 0.01).plus(128).clamp(0, 255);
+    }
+
+    /**
+     * White if the tone is at least the value, black otherwise
+     */
+    public static ToneExpression threshold() {
+        return tone().threshold(0, 1);
+    }
+
+    /**
+     * Multiplies the tone by factor + perValue * value
+     */
+    public ToneExpression scale(double factor, double perValue) {
+        return then(new Step(AFFINE, factor, perValue, 0, 0));
+    }
+
+    /**
+     * Adds offset + perValue * value to the tone
+     */
+    public ToneExpression offset(double offset, double perValue) {
+        return then(new Step(AFFINE, 1, 0, offset, perValue));
+    }
+
+    public ToneExpression times(double factor) {
+        return scale(factor, 0);
+    }
+
+    public ToneExpression plus(double offset) {
+        return offset(offset, 0);
+    }
+
+    /**
+     * Limits the tone to [min, max]
+     */
+    public ToneExpression clamp(double min, double max) {
+        return then(new Step(CLAMP, min, 0, max, 0));
+    }
+
+    /**
+     * Replaces the tone by white (255) if it is at least level + perValue * value, or by black (0) otherwise
+     */
+    public ToneExpression threshold(double level, double perValue) {
+        return then(new Step(THRESHOLD, level, perValue, 0, 0));
+    }
+
+    private ToneExpression then(Step step) {
+        List<Step> list = new ArrayList<>(steps);
+        list.add(step);
+        return new ToneExpression(List.copyOf(list));
+    }
+
+    @Override
+    public int transform(int tone) {
+        return transform(tone, 0);
+    }
+
+    @Override
+    public int transform(int tone, int value) {
+        return evaluate(bind(value), tone);
+    }
+
+    /**
+     * Returns the steps for a given value, as triples (kind, p, q) of floats,
+     * where consecutive affine steps are merged into one, which is left out if it keeps
+     * every tone as it is (so an expression may bind to no steps, e.g. a gain of 0)
+     */
+    float[] bind(int value) {
+        float[] program = new float[steps.size() * 3];
+        int n = 0;
+        double a = 1, b = 0;
+        for (Step s : steps) {
+            double p = s.p + s.pv * value;
+            double q = s.q + s.qv * value;
+            if (s.kind == AFFINE) {
+                a *= p;
+                b = b * p + q;
+                continue;
+            }
+            n = addAffine(program, n, a, b);
+            a = 1;
+            b = 0;
+            n = add(program, n, s.kind, p, q);
+        }
+        n = addAffine(program, n, a, b);
+        return Arrays.copyOf(program, n);
+    }
+
+    private static int addAffine(float[] program, int n, double a, double b) {
+        return a == 1 && b == 0 ? n : add(program, n, AFFINE, a, b);
+    }
+
+    private static int add(float[] program, int n, int kind, double p, double q) {
+        program[n] = kind;
+        program[n + 1] = (float) p;
+        program[n + 2] = (float) q;
+        return n + 3;
+    }
+
+    /**
+     * Evaluates bound steps over a tone
+     */
+    static int evaluate(float[] program, int tone) {
+        float t = tone;
+        for (int i = 0; i < program.length; i += 3) {
+            float p = program[i + 1];
+            float q = program[i + 2];
+            switch ((int) program[i]) {
+                case AFFINE -> t = t * p + q;
+                case CLAMP -> t = Math.min(Math.max(t, p), q);
+                case THRESHOLD -> t = t >= p ? 255 : 0;
+                default -> t = round(t);
+            }
+        }
+        return round(t);
+    }
+
+    /**
+     * Nearest integer, with halves rounded up (the same as the vectorized rounding)
+     */
+    static int round(float t) {
+        float s = t + 0.5f;
+        int r = (int) s;
+        return s < r ? r - 1 : r;
+    }
+
+    /**
+     * Applies bound steps to every pixel of an image, in vector lanes
+     * (without the Vector API, filters use their lookup tables instead)
+     */
+    static void apply(float[] program, int[][] image) {
+        RowKernels.DEFAULT.evaluate(program, image);
+    }
+
+    /**
+     * Concatenates the bound steps of consecutive filters, rounding the tone between them
+     * so that the result is the same as applying the filters one after the other.
+     * The rounding is left out after steps that keep whole tones whole, in which case
+     * whole affine steps at the boundary are merged (exactly, as all the values are whole).
+     */
+    static float[] concat(List<float[]> programs) {
+        int length = 0;
+        for (float[] p : programs)
+            length += p.length + 3;
+        float[] program = new float[length];
+        int n = 0;
+        boolean integral = true;
+        for (float[] p : programs) {
+            if (!integral)
+                n = add(program, n, ROUND, 0, 0);
+            for (int i = 0; i < p.length; i += 3) {
+                boolean whole = p[i + 1] == Math.rint(p[i + 1]) && p[i + 2] == Math.rint(p[i + 2]);
+                if (p[i] == AFFINE && whole && n > 0 && program[n - 3] == AFFINE) {
+                    program[n - 1] = program[n - 1] * p[i + 1] + p[i + 2];
+                    program[n - 2] *= p[i + 1];
+                } else {
+                    System.arraycopy(p, i, program, n, 3);
+                    n += 3;
+                }
+            }
+            integral = isIntegral(p);
+        }
+        return Arrays.copyOf(program, n);
+    }
+
+    /**
+     * Whether the steps give a whole tone for every whole tone
+     */
+    private static boolean isIntegral(float[] program) {
+        for (int i = 0; i < program.length; i += 3)
+            if (program[i] != THRESHOLD && (program[i + 1] != Math.rint(program[i + 1]) || program[i + 2] != Math.rint(program[i + 2])))
+                return false;
+        return true;
+    }
+}
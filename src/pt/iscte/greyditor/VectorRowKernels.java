@@ -0,0 +1,115 @@
+package pt.iscte.greyditor;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Row kernels that process as many elements per instruction as the preferred vector width allows.
+ * Only loaded when the jdk.incubator.vector module is present (see {@link RowKernels}).
+ */
+final class VectorRowKernels implements RowKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void correlate(float[] src, float[] taps, float[] dst, int n) {
+        int upper = SPECIES.loopBound(n);
+        int x = 0;
+        for (; x < upper; x += SPECIES.length()) {
+            FloatVector sum = FloatVector.fromArray(SPECIES, dst, x);
+            for (int i = 0; i < taps.length; i++)
+                sum = FloatVector.fromArray(SPECIES, src, x + i).fma(FloatVector.broadcast(SPECIES, taps[i]), sum);
+            sum.intoArray(dst, x);
+        }
+        for (; x < n; x++) {
+            float sum = dst[x];
+            for (int i = 0; i < taps.length; i++)
+                sum += taps[i] * src[x + i];
+            dst[x] = sum;
+        }
+    }
+
+    @Override
+    public void axpy(float a, float[] src, float[] dst, int n) {
+        FloatVector factor = FloatVector.broadcast(SPECIES, a);
+        int upper = SPECIES.loopBound(n);
+        int x = 0;
+        for (; x < upper; x += SPECIES.length())
+            FloatVector.fromArray(SPECIES, src, x).fma(factor, FloatVector.fromArray(SPECIES, dst, x)).intoArray(dst, x);
+        for (; x < n; x++)
+            dst[x] += a * src[x];
+    }
+
+    /**
+     * Evaluates the steps one at a time over a row of floats, so that each step is a tight loop
+     */
+    @Override
+    public void evaluate(float[] program, int[][] image) {
+        float[] t = new float[0];
+        for (int[] row : image) {
+            if (row == null)
+                continue;
+            int n = row.length;
+            if (t.length < n)
+                t = new float[n];
+            int upper = INT_SPECIES.loopBound(n);
+            int x = 0;
+            for (; x < upper; x += INT_SPECIES.length())
+                ((FloatVector) IntVector.fromArray(INT_SPECIES, row, x).convert(VectorOperators.I2F, 0)).intoArray(t, x);
+            for (; x < n; x++)
+                t[x] = row[x];
+            for (int i = 0; i < program.length; i += 3)
+                step((int) program[i], program[i + 1], program[i + 2], t, n);
+            x = 0;
+            for (; x < upper; x += INT_SPECIES.length())
+                round(FloatVector.fromArray(SPECIES, t, x)).intoArray(row, x);
+            for (; x < n; x++)
+                row[x] = ToneExpression.round(t[x]);
+        }
+    }
+
+    private static void step(int kind, float p, float q, float[] t, int n) {
+        int upper = SPECIES.loopBound(n);
+        int x = 0;
+        switch (kind) {
+            case ToneExpression.AFFINE -> {
+                for (; x < upper; x += SPECIES.length())
+                    FloatVector.fromArray(SPECIES, t, x).mul(p).add(q).intoArray(t, x);
+                for (; x < n; x++)
+                    t[x] = t[x] * p + q;
+            }
+            case ToneExpression.CLAMP -> {
+                for (; x < upper; x += SPECIES.length())
+                    FloatVector.fromArray(SPECIES, t, x).max(p).min(q).intoArray(t, x);
+                for (; x < n; x++)
+                    t[x] = Math.min(Math.max(t[x], p), q);
+            }
+            case ToneExpression.THRESHOLD -> {
+                FloatVector black = FloatVector.zero(SPECIES);
+                for (; x < upper; x += SPECIES.length())
+                    black.blend(255, FloatVector.fromArray(SPECIES, t, x).compare(VectorOperators.GE, p)).intoArray(t, x);
+                for (; x < n; x++)
+                    t[x] = t[x] >= p ? 255 : 0;
+            }
+            default -> {
+                for (; x < upper; x += SPECIES.length())
+                    ((FloatVector) round(FloatVector.fromArray(SPECIES, t, x)).convert(VectorOperators.I2F, 0)).intoArray(t, x);
+                for (; x < n; x++)
+                    t[x] = ToneExpression.round(t[x]);
+            }
+        }
+    }
+
+    /**
+     * Rounds to the nearest integer, with halves rounded up, as {@link ToneExpression#round(float)}
+     */
+    private static IntVector round(FloatVector t) {
+        FloatVector s = t.add(0.5f);
+        IntVector r = (IntVector) s.convert(VectorOperators.F2I, 0);
+        VectorMask<Float> below = s.compare(VectorOperators.LT, r.convert(VectorOperators.I2F, 0));
+        return r.sub(1, below.cast(INT_SPECIES));
+    }
+}
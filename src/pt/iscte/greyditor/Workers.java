@@ -0,0 +1,52 @@
+package pt.iscte.greyditor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pools of background threads shared by all the windows, so that opening many windows does not start
+ * as many competing threads: one for computing frames, and another for decoding and saving files,
+ * whose long tasks would otherwise delay the frames queued after them.
+ * The number of threads for frames is one less than the number of processors (at least one), which may be
+ * changed with the property greyditor.workers, and the number of threads for files is 2, which may be
+ * changed with the property greyditor.ioThreads. Threads for files have a lower priority. Idle threads terminate after a while.
+ */
+final class Workers {
+    private static final ThreadPoolExecutor POOL = create(Integer.getInteger("greyditor.workers",
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1)), "worker", Thread.NORM_PRIORITY);
+    private static final ThreadPoolExecutor IO = create(Integer.getInteger("greyditor.ioThreads", 2),
+            "io", Thread.NORM_PRIORITY - 1);
+
+    private Workers() {
+    }
+
+    private static ThreadPoolExecutor create(int threads, String name, int priority) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "greyditor " + name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Threads for computing frames
+     */
+    static Executor executor() {
+        return POOL;
+    }
+
+    /**
+     * Threads for decoding and saving files
+     */
+    static Executor io() {
+        return IO;
+    }
+}
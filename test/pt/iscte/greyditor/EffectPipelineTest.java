@@ -0,0 +1,119 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EffectPipelineTest {
+    private static final long CACHE = 1 << 20;
+
+    /**
+     * Effect that adds its value to every pixel, counting how many times it is applied
+     */
+    private static final class Add implements EffectValue {
+        int runs;
+
+        @Override
+        public void apply(int[][] image, int value) {
+            runs++;
+            for (int[] row : image)
+                for (int x = 0; x < row.length; x++)
+                    row[x] += value;
+        }
+    }
+
+    private static EditorWindow.EffectMinMax effect(String text, Effect effect, EffectTraits traits) {
+        return new EditorWindow.EffectMinMax(text, effect, -100, 100, traits);
+    }
+
+    private static GreyBuffer image() {
+        return GreyBuffer.of(new int[][] {{10, 20, 30}, {40, 50, 60}});
+    }
+
+    @Test
+    void onlyTheStagesAfterAChangeAreRecomputed() {
+        Add first = new Add();
+        Add second = new Add();
+        EffectPipeline pipeline = new EffectPipeline(List.of(
+                effect("first", first, EffectTraits.global()),
+                effect("second", second, EffectTraits.global())), CACHE, false);
+        GreyBuffer image = image();
+
+        GreyBuffer output = pipeline.apply(image, 1, new Integer[] {1, 2});
+        assertArrayEquals(new int[][] {{13, 23, 33}, {43, 53, 63}}, output.toMatrix());
+        assertArrayEquals(image().toMatrix(), image.toMatrix());
+        assertEquals(1, first.runs);
+        assertEquals(1, second.runs);
+
+        assertArrayEquals(output.toMatrix(), pipeline.apply(image, 1, new Integer[] {1, 2}).toMatrix());
+        assertEquals(1, first.runs);
+        assertEquals(1, second.runs);
+
+        assertArrayEquals(new int[][] {{16, 26, 36}, {46, 56, 66}},
+                pipeline.apply(image, 1, new Integer[] {1, 5}).toMatrix());
+        assertEquals(1, first.runs);
+        assertEquals(2, second.runs);
+
+        pipeline.apply(image, 2, new Integer[] {1, 5});
+        assertEquals(2, first.runs);
+        assertEquals(3, second.runs);
+    }
+
+    @Test
+    void impureEffectsAndTheirFollowersAreNotCached() {
+        Add pure = new Add();
+        Add impure = new Add();
+        Add after = new Add();
+        EffectPipeline pipeline = new EffectPipeline(List.of(
+                effect("pure", pure, EffectTraits.global()),
+                effect("impure", impure, EffectTraits.global().impure()),
+                effect("after", after, EffectTraits.global())), CACHE, false);
+        for (int i = 0; i < 3; i++)
+            pipeline.apply(image(), 1, new Integer[] {1, 1, 1});
+        assertEquals(1, pure.runs);
+        assertEquals(3, impure.runs);
+        assertEquals(3, after.runs);
+    }
+
+    @Test
+    void identityValuesAndInactiveEffectsAreSkipped() {
+        Add add = new Add();
+        Add inactive = new Add();
+        EffectPipeline pipeline = new EffectPipeline(List.of(
+                effect("add", add, EffectTraits.global().identity(0)),
+                effect("inactive", inactive, EffectTraits.global())), CACHE, false);
+        GreyBuffer output = pipeline.apply(image(), 1, new Integer[] {0, null});
+        assertArrayEquals(image().toMatrix(), output.toMatrix());
+        assertEquals(0, add.runs);
+        assertEquals(0, inactive.runs);
+    }
+
+    @Test
+    void withoutCacheEveryStageIsRecomputed() {
+        Add add = new Add();
+        EffectPipeline pipeline = new EffectPipeline(List.of(effect("add", add, EffectTraits.global())), 0, false);
+        pipeline.apply(image(), 1, new Integer[] {1});
+        pipeline.apply(image(), 1, new Integer[] {1});
+        assertEquals(2, add.runs);
+    }
+
+    @Test
+    void regionMatchesTheWholeImage() {
+        EffectPipeline pipeline = new EffectPipeline(List.of(
+                effect("brightness", new Greyditor.FilterValueAdapter(ToneExpression.brightness()), EffectTraits.FILTER),
+                effect("add", new Add(), EffectTraits.pointwise())), CACHE, false);
+        GreyBuffer image = image();
+        Integer[] values = {100, 7};
+        Selection region = new Selection(1, 0, 2, 2);
+        GreyBuffer patch = pipeline.applyRegion(image, region, values);
+        assertArrayEquals(pipeline.apply(image, 1, values).region(region).toMatrix(), patch.toMatrix());
+    }
+
+    @Test
+    void regionIsRefusedForEffectsThatAreNotPointwise() {
+        EffectPipeline pipeline = new EffectPipeline(List.of(effect("add", new Add(), EffectTraits.global())), CACHE, false);
+        assertNull(pipeline.applyRegion(image(), new Selection(0, 0, 1, 1), new Integer[] {1}));
+    }
+}
@@ -0,0 +1,89 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FusedFilterTest {
+    /**
+     * Every tone in [-300, 555], in rows of different lengths
+     */
+    private static int[][] tones() {
+        int[][] image = new int[16][];
+        int tone = -300;
+        for (int y = 0; y < image.length; y++) {
+            image[y] = new int[53 + y % 3];
+            for (int x = 0; x < image[y].length; x++)
+                image[y][x] = tone++;
+        }
+        return image;
+    }
+
+    private static Greyditor.FilterValueAdapter filter(FilterValue f) {
+        return new Greyditor.FilterValueAdapter(f);
+    }
+
+    /**
+     * Applies the filters one after the other, a pixel at a time
+     */
+    private static int[][] baseline(List<FilterValue> filters, List<Integer> values) {
+        int[][] image = tones();
+        for (int[] row : image)
+            for (int x = 0; x < row.length; x++)
+                for (int i = 0; i < filters.size(); i++)
+                    row[x] = filters.get(i).transform(row[x], values.get(i));
+        return image;
+    }
+
+    private static int[][] fused(List<FilterValue> filters, List<Integer> values) {
+        FusedFilter fused = new FusedFilter();
+        for (int i = 0; i < filters.size(); i++)
+            fused.add(filter(filters.get(i)), values.get(i));
+        int[][] image = tones();
+        fused.apply(image);
+        return image;
+    }
+
+    private static void assertFusedMatchesBaseline(List<FilterValue> filters, List<Integer> values) {
+        assertArrayEquals(baseline(filters, values), fused(filters, values));
+    }
+
+    @Test
+    void opaqueFiltersMatchTheBaseline() {
+        FilterValue doubleMinus = (tone, value) -> tone * 2 - value;
+        FilterValue invert = (tone, _) -> 255 - tone;
+        FilterValue posterize = (tone, value) -> tone / value * value;
+        assertFusedMatchesBaseline(List.of(doubleMinus), List.of(30));
+        assertFusedMatchesBaseline(List.of(doubleMinus, invert), List.of(30, 0));
+        assertFusedMatchesBaseline(List.of(invert, posterize, doubleMinus), List.of(0, 32, -7));
+    }
+
+    @Test
+    void expressionsMatchTheBaseline() {
+        List<FilterValue> filters = List.of(ToneExpression.brightness(), ToneExpression.contrast(),
+                ToneExpression.tone().scale(1, 0.01), ToneExpression.invert(), ToneExpression.threshold());
+        for (int value : new int[] {-100, -33, 0, 1, 50, 100})
+            for (int i = 0; i < filters.size(); i++)
+                for (int j = 0; j < filters.size(); j++)
+                    assertFusedMatchesBaseline(List.of(filters.get(i), filters.get(j)), List.of(value, value / 2 + 1));
+    }
+
+    @Test
+    void mixedFiltersMatchTheBaseline() {
+        FilterValue square = (tone, _) -> tone * tone / 255;
+        assertFusedMatchesBaseline(List.of(ToneExpression.brightness(), square, ToneExpression.tone().times(0.3).plus(7.5)),
+                List.of(40, 0, 0));
+    }
+
+    @Test
+    void tableIsTheComposition() {
+        FusedFilter fused = new FusedFilter();
+        fused.add(filter(ToneExpression.brightness()), 20);
+        fused.add(filter((tone, _) -> 255 - tone), 0);
+        int[] table = fused.table();
+        for (int t = 0; t < 256; t++)
+            assertEquals(255 - Math.min(t + 20, 255), table[t]);
+    }
+}
@@ -0,0 +1,101 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GreyBufferTest {
+    private static int[][] gradient(int width, int height) {
+        int[][] matrix = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                matrix[y][x] = (x * 7 + y * 13) % 256;
+        return matrix;
+    }
+
+    @Test
+    void matrixRoundTrip() {
+        int[][] matrix = gradient(20, 10);
+        assertArrayEquals(matrix, GreyBuffer.of(matrix).toMatrix());
+    }
+
+    @Test
+    void copySharesRowsUntilWritten() {
+        GreyBuffer original = GreyBuffer.of(gradient(20, 10));
+        GreyBuffer copy = original.copy();
+        assertSame(original.row(3), copy.row(3));
+
+        copy.set(5, 3, 200);
+        assertNotSame(original.row(3), copy.row(3));
+        assertSame(original.row(4), copy.row(4));
+        assertEquals(gradient(20, 10)[3][5], original.get(5, 3));
+        assertEquals(200, copy.get(5, 3));
+
+        // the original does not write into the rows that the copy still shares
+        original.set(0, 4, 99);
+        assertEquals(gradient(20, 10)[4][0], copy.get(0, 4));
+        assertEquals(99, original.get(0, 4));
+    }
+
+    @Test
+    void outliersAreKept() {
+        int[][] matrix = {{-5, 0, 255, 300}, {1, 2, 3, 4}};
+        GreyBuffer buffer = GreyBuffer.of(matrix);
+        assertArrayEquals(matrix, buffer.toMatrix());
+        assertArrayEquals(new byte[] {0, 0, (byte) 255, (byte) 255}, buffer.row(0));
+        assertNull(buffer.outlierRow(1));
+
+        buffer.set(0, 1, 1000);
+        assertEquals(1000, buffer.get(0, 1));
+        assertEquals((byte) 255, buffer.row(1)[0]);
+        buffer.set(0, 1, 7);
+        assertEquals(7, buffer.get(0, 1));
+    }
+
+    @Test
+    void outliersAreCopiedOnWrite() {
+        GreyBuffer original = GreyBuffer.of(new int[][] {{-5, 300}});
+        GreyBuffer copy = original.copy();
+        copy.set(0, 0, -10);
+        assertEquals(-5, original.get(0, 0));
+        assertEquals(-10, copy.get(0, 0));
+    }
+
+    @Test
+    void raggedMatrixRoundTrip() {
+        int[][] matrix = {{1, 2, 3}, {4}, null, {5, 6}};
+        GreyBuffer buffer = GreyBuffer.of(matrix);
+        assertTrue(buffer.isRagged());
+        assertEquals(3, buffer.width);
+        assertArrayEquals(matrix, buffer.toMatrix());
+    }
+
+    @Test
+    void differenceRegionAndPaste() {
+        GreyBuffer before = GreyBuffer.of(gradient(30, 20));
+        GreyBuffer after = before.copy();
+        assertNull(before.difference(after));
+        after.set(4, 6, 0);
+        after.set(10, 2, 400);
+        Selection bounds = before.difference(after);
+        assertEquals(new Selection(4, 2, 7, 5), bounds);
+
+        GreyBuffer restored = after.copy();
+        restored.paste(before.region(bounds), bounds.x(), bounds.y());
+        assertNull(before.difference(restored));
+        GreyBuffer redone = before.copy();
+        redone.paste(after.region(bounds), bounds.x(), bounds.y());
+        assertNull(after.difference(redone));
+        assertEquals(400, redone.get(10, 2));
+    }
+
+    @Test
+    void bytesRoundTrip() {
+        int[][] matrix = gradient(15, 9);
+        matrix[3][4] = -1;
+        matrix[8][0] = 256;
+        assertArrayEquals(matrix, GreyBuffer.fromBytes(GreyBuffer.of(matrix).toBytes()).toMatrix());
+        int[][] ragged = {{1, 2}, {3}};
+        assertArrayEquals(ragged, GreyBuffer.fromBytes(GreyBuffer.of(ragged).toBytes()).toMatrix());
+    }
+}
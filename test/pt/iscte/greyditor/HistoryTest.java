@@ -0,0 +1,113 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryTest {
+    private History history;
+
+    @AfterEach
+    void close() {
+        history.close();
+    }
+
+    /**
+     * Records a number of random changes
+     * @return the images after each change, starting with the initial one
+     */
+    private static List<GreyBuffer> edit(History history, int changes) {
+        Random random = new Random(changes);
+        List<GreyBuffer> images = new ArrayList<>();
+        GreyBuffer image = new GreyBuffer(64, 48);
+        images.add(image);
+        for (int i = 0; i < changes; i++) {
+            GreyBuffer next = image.copy();
+            for (int k = 0; k < 100; k++)
+                next.set(random.nextInt(64), random.nextInt(48), random.nextInt(256));
+            history.record(image, next);
+            images.add(next);
+            image = next;
+        }
+        return images;
+    }
+
+    private static void assertSameImage(GreyBuffer expected, GreyBuffer actual) {
+        assertArrayEquals(expected.toMatrix(), actual.toMatrix());
+    }
+
+    private void undoAndRedoAll(List<GreyBuffer> images) {
+        GreyBuffer image = images.getLast();
+        for (int i = images.size() - 2; i >= 0; i--) {
+            image = history.undo(image);
+            assertSameImage(images.get(i), image);
+        }
+        assertFalse(history.canUndo());
+        assertNull(history.undo(image));
+        for (int i = 1; i < images.size(); i++) {
+            image = history.redo(image);
+            assertSameImage(images.get(i), image);
+        }
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    void undoAndRedoInMemory() {
+        history = new History(Long.MAX_VALUE);
+        undoAndRedoAll(edit(history, 10));
+    }
+
+    @Test
+    void undoAndRedoFromTheSpillFile() {
+        history = new History(0);
+        undoAndRedoAll(edit(history, 10));
+    }
+
+    @Test
+    void recordingDiscardsTheRedoSteps() {
+        history = new History(0);
+        List<GreyBuffer> images = edit(history, 3);
+        GreyBuffer image = history.undo(history.undo(images.getLast()));
+        GreyBuffer next = image.copy();
+        next.set(0, 0, 1);
+        history.record(image, next);
+        assertFalse(history.canRedo());
+        assertSameImage(image, history.undo(next));
+        assertSameImage(images.getFirst(), history.undo(image));
+    }
+
+    @Test
+    void unchangedImageIsNotRecorded() {
+        history = new History(Long.MAX_VALUE);
+        GreyBuffer image = new GreyBuffer(4, 4);
+        history.record(image, image.copy());
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    void changedRectangleIsRecorded() {
+        history = new History(Long.MAX_VALUE);
+        GreyBuffer image = new GreyBuffer(10, 10);
+        GreyBuffer next = image.copy();
+        next.set(3, 4, 9);
+        next.set(5, 6, -2);
+        history.record(image, next, new Selection(3, 4, 3, 3));
+        assertSameImage(image, history.undo(next));
+        assertSameImage(next, history.redo(image));
+    }
+
+    @Test
+    void changeOfDimensionKeepsTheWholeImages() {
+        history = new History(Long.MAX_VALUE);
+        GreyBuffer image = GreyBuffer.of(new int[][] {{1, 2, 3}, {4, 5, 6}});
+        GreyBuffer cropped = GreyBuffer.of(new int[][] {{5, 6}});
+        history.record(image, cropped);
+        assertSameImage(image, history.undo(cropped));
+        assertSameImage(cropped, history.redo(image));
+    }
+}
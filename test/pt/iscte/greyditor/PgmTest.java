@@ -0,0 +1,81 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PgmTest {
+    @TempDir
+    Path dir;
+
+    private static int[][] randomImage(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        int[][] image = new int[height][width];
+        for (int[] row : image)
+            for (int x = 0; x < width; x++)
+                row[x] = random.nextInt(256);
+        return image;
+    }
+
+    private Path write(int[][] image, boolean ascii, boolean sixteenBits) throws IOException {
+        Path file = dir.resolve("image.pgm");
+        Pgm.write(GreyBuffer.of(image), file, ascii, sixteenBits, _ -> {}, () -> false);
+        return file;
+    }
+
+    @Test
+    void roundTripInEveryFormat() throws IOException {
+        int[][] image = randomImage(37, 23);
+        for (boolean ascii : new boolean[] {false, true})
+            for (boolean sixteenBits : new boolean[] {false, true}) {
+                Path file = write(image, ascii, sixteenBits);
+                assertArrayEquals(image, Pgm.read(file).toMatrix(), "ascii " + ascii + ", 16 bits " + sixteenBits);
+                assertEquals(new Dimension(37, 23), Pgm.readSize(file));
+            }
+    }
+
+    @Test
+    void headerOfFormat() throws IOException {
+        assertEquals("P5", new String(Files.readAllBytes(write(randomImage(3, 2), false, false)), 0, 2));
+        String ascii = Files.readString(write(randomImage(3, 2), true, true));
+        assertTrue(ascii.startsWith("P2\n3 2\n65535\n"), ascii);
+    }
+
+    @Test
+    void rowsMatchTheImage() throws IOException {
+        int[][] image = randomImage(50, 40);
+        Path file = write(image, false, true);
+        try (RowSource rows = Pgm.rows(file)) {
+            assertEquals(50, rows.width());
+            assertEquals(40, rows.height());
+            byte[] row = new byte[50];
+            for (int y = 0; y < 40; y++) {
+                rows.row(y, row);
+                for (int x = 0; x < 50; x++)
+                    assertEquals(image[y][x], row[x] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    void outliersAreClamped() throws IOException {
+        int[][] image = {{-20, 0, 255, 300}};
+        assertArrayEquals(new int[][] {{0, 0, 255, 255}}, Pgm.read(write(image, true, false)).toMatrix());
+    }
+
+    @Test
+    void invalidHeaderIsRejected() throws IOException {
+        Path file = dir.resolve("invalid.pgm");
+        Files.writeString(file, "P5\n0 10\n255\n");
+        assertThrows(IOException.class, () -> Pgm.read(file));
+        Files.writeString(file, "P5\n2 2\n255\n"); // missing samples
+        assertThrows(IOException.class, () -> Pgm.read(file));
+    }
+}
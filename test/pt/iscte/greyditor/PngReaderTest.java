@@ -0,0 +1,90 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PngReaderTest {
+    private static final int WIDTH = 45;
+    private static final int HEIGHT = 31;
+
+    @TempDir
+    Path dir;
+
+    private Path write(int type) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        Random random = new Random(type);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                image.setRGB(x, y, 0xFF000000 | random.nextInt(1 << 24));
+        Path file = dir.resolve("image" + type + ".png");
+        assertTrue(ImageIO.write(image, "png", file.toFile()));
+        return file;
+    }
+
+    private static int[][] readRows(Path file) throws IOException {
+        try (PngReader reader = PngReader.open(file)) {
+            assertEquals(WIDTH, reader.width());
+            assertEquals(HEIGHT, reader.height());
+            int[][] tones = new int[HEIGHT][WIDTH];
+            byte[] row = new byte[WIDTH];
+            for (int y = 0; y < HEIGHT; y++) {
+                reader.row(y, row);
+                for (int x = 0; x < WIDTH; x++)
+                    tones[y][x] = row[x] & 0xFF;
+            }
+            return tones;
+        }
+    }
+
+    /**
+     * The rows match the conversion of the image decoded by ImageIO
+     */
+    private void assertMatchesImageIO(int type) throws IOException {
+        Path file = write(type);
+        int[][] expected = Greyditor.getImageDataGray(ImageIO.read(file.toFile()));
+        assertArrayEquals(expected, readRows(file), "type " + type);
+    }
+
+    @Test
+    void grayImages() throws IOException {
+        assertMatchesImageIO(BufferedImage.TYPE_BYTE_GRAY);
+        assertMatchesImageIO(BufferedImage.TYPE_BYTE_BINARY);
+    }
+
+    @Test
+    void colorImages() throws IOException {
+        assertMatchesImageIO(BufferedImage.TYPE_INT_RGB);
+        assertMatchesImageIO(BufferedImage.TYPE_INT_ARGB);
+        assertMatchesImageIO(BufferedImage.TYPE_BYTE_INDEXED);
+    }
+
+    @Test
+    void sixteenBitImagesKeepTheMostSignificantByte() throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                image.getRaster().setSample(x, y, 0, (x * 1000 + y * 37) % 65536);
+        Path file = dir.resolve("image16.png");
+        assertTrue(ImageIO.write(image, "png", file.toFile()));
+        int[][] tones = readRows(file);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                assertEquals(((x * 1000 + y * 37) % 65536) >> 8, tones[y][x]);
+    }
+
+    @Test
+    void otherFilesAreNotOpened() throws IOException {
+        Path file = dir.resolve("image.pgm");
+        Files.writeString(file, "P2\n1 1\n255\n0\n");
+        assertNull(PngReader.open(file));
+    }
+}
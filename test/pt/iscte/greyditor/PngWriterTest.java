@@ -0,0 +1,93 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PngWriterTest {
+    @TempDir
+    Path dir;
+
+    private static int[][] randomImage(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        int[][] image = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image[y][x] = y % 3 == 0 ? random.nextInt(256) : (x + y) % 256; // noise and smooth rows
+        return image;
+    }
+
+    /**
+     * Reads a file with ImageIO, independently of the writer
+     */
+    private static int[][] read(Path file) throws IOException {
+        BufferedImage image = ImageIO.read(file.toFile());
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+        int[][] tones = new int[image.getHeight()][image.getWidth()];
+        for (int y = 0; y < tones.length; y++)
+            image.getRaster().getSamples(0, y, image.getWidth(), 1, 0, tones[y]);
+        return tones;
+    }
+
+    @Test
+    void roundTripWithEveryFilterAndLevel() throws IOException {
+        int[][] image = randomImage(97, 61);
+        Path file = dir.resolve("image.png");
+        for (PngWriter.Filter filter : PngWriter.Filter.values())
+            for (int level : new int[] {-1, 0, 9}) {
+                PngWriter writer = new PngWriter();
+                writer.setFilter(filter);
+                writer.setCompressionLevel(level);
+                writer.write(image, file);
+                assertArrayEquals(image, read(file), filter + " " + level);
+                try (PngReader reader = PngReader.open(file)) {
+                    byte[] row = new byte[97];
+                    for (int y = 0; y < 61; y++) {
+                        reader.row(y, row);
+                        for (int x = 0; x < 97; x++)
+                            assertEquals(image[y][x], row[x] & 0xFF);
+                    }
+                }
+            }
+    }
+
+    @Test
+    void outliersAreClampedAndMissingPixelsAreBlack() throws IOException {
+        Path file = dir.resolve("image.png");
+        new PngWriter().write(new int[][] {{-5, 128, 300}, {7}}, file);
+        assertArrayEquals(new int[][] {{0, 128, 255}, {7, 0, 0}}, read(file));
+    }
+
+    @Test
+    void cancellingLeavesTheTargetUntouched() throws IOException {
+        Path file = dir.resolve("image.png");
+        Files.writeString(file, "previous");
+        GreyBuffer image = GreyBuffer.of(randomImage(64, 512));
+        assertThrows(CancellationException.class,
+                () -> new PngWriter().write(image, file, _ -> {}, () -> true));
+        assertEquals("previous", Files.readString(file));
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void progressReachesTheEnd() throws IOException {
+        double[] last = {0};
+        new PngWriter().write(GreyBuffer.of(randomImage(64, 512)), dir.resolve("image.png"),
+                progress -> {
+                    assertTrue(progress >= last[0]);
+                    last[0] = progress;
+                }, () -> false);
+        assertEquals(1, last[0]);
+    }
+}
@@ -0,0 +1,82 @@
+package pt.iscte.greyditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ToneExpressionTest {
+    private static final List<ToneExpression> EXPRESSIONS = List.of(
+            ToneExpression.tone(), ToneExpression.invert(), ToneExpression.brightness(), ToneExpression.contrast(),
+            ToneExpression.threshold(), ToneExpression.tone().scale(1, 0.01).clamp(0, 255),
+            ToneExpression.tone().times(0.7).plus(3.3), ToneExpression.tone().threshold(100, 0).times(0.5));
+    private static final int[] VALUES = {-100, -37, 0, 1, 50, 100};
+
+    /**
+     * Consecutive tones from -300 (beyond 555), in rows of lengths that are not all multiples of the vector lanes
+     */
+    private static int[][] tones() {
+        int[][] image = new int[20][];
+        int tone = -300;
+        for (int y = 0; y < image.length; y++) {
+            image[y] = new int[41 + y];
+            for (int x = 0; x < image[y].length; x++)
+                image[y][x] = tone++;
+        }
+        return image;
+    }
+
+    private static int[][] evaluate(RowKernels kernels, float[] program) {
+        int[][] image = tones();
+        kernels.evaluate(program, image);
+        return image;
+    }
+
+    @Test
+    void defaultKernelsMatchTheScalarEvaluation() {
+        for (ToneExpression e : EXPRESSIONS)
+            for (int value : VALUES) {
+                float[] program = e.bind(value);
+                int[][] expected = evaluate(RowKernels.SCALAR, program);
+                assertArrayEquals(expected, evaluate(RowKernels.DEFAULT, program), "value " + value);
+                int[][] source = tones();
+                for (int y = 0; y < source.length; y++)
+                    for (int x = 0; x < source[y].length; x++)
+                        assertEquals(e.transform(source[y][x], value), expected[y][x]);
+            }
+    }
+
+    @Test
+    void concatenationMatchesTheExpressionsInSequence() {
+        for (ToneExpression first : EXPRESSIONS)
+            for (ToneExpression second : EXPRESSIONS)
+                for (int value : VALUES) {
+                    List<float[]> programs = new ArrayList<>();
+                    programs.add(first.bind(value));
+                    programs.add(second.bind(-value));
+                    float[] program = ToneExpression.concat(programs);
+                    for (int tone = -300; tone <= 555; tone++)
+                        assertEquals(second.transform(first.transform(tone, value), -value),
+                                ToneExpression.evaluate(program, tone));
+                }
+    }
+
+    @Test
+    void stepsThatKeepTheToneAreLeftOut() {
+        assertEquals(0, ToneExpression.tone().scale(1, 0.01).bind(0).length);
+        assertEquals(0, ToneExpression.tone().bind(5).length);
+        // only the clamp, as tones outside [0, 255] are still clamped
+        assertArrayEquals(new float[] {ToneExpression.CLAMP, 0, 255}, ToneExpression.brightness().bind(0));
+        assertEquals(3, ToneExpression.invert().bind(0).length);
+    }
+
+    @Test
+    void halvesAreRoundedUp() {
+        ToneExpression half = ToneExpression.tone().times(0.5);
+        assertEquals(1, half.transform(1));
+        assertEquals(2, half.transform(3));
+        assertEquals(0, half.transform(-1));
+    }
+}